@@ -8,16 +8,16 @@ import org.mcphackers.mcp.tasks.info.*;
 public enum EnumMode {
 
 	help("Displays command usage", null),
-	decompile("Start decompiling Minecraft", new TaskInfoDecompile(), new String[] {"debug", "ignore", "indention", "patch", "side", "client", "server"}),
-	recompile("Recompile Minecraft sources", new TaskInfoRecompile(), new String[] {"debug", "side", "client", "server"}),
-	reobfuscate("Reobfuscate Minecraft classes", new TaskInfoReobfuscate(), new String[] {"debug", "side", "client", "server"}),
-	updatemd5("Update md5 hash tables used for reobfuscation", new TaskInfoUpdateMD5(), new String[] {"debug", "side", "client", "server"}),
+	decompile("Start decompiling Minecraft", new TaskInfoDecompile(), new String[] {"debug", "ignore", "indention", "patch", "side", "client", "server", "shards", "inmemory", "sourcecache", "bytecodeconstants", "fasthash", "exportmd5", "threads"}),
+	recompile("Recompile Minecraft sources", new TaskInfoRecompile(), new String[] {"debug", "side", "client", "server", "incremental", "threads"}),
+	reobfuscate("Reobfuscate Minecraft classes", new TaskInfoReobfuscate(), new String[] {"debug", "side", "client", "server", "exportmd5", "threads"}),
+	updatemd5("Update md5 hash tables used for reobfuscation", new TaskInfoUpdateMD5(), new String[] {"debug", "side", "client", "server", "fasthash", "exportmd5", "threads"}),
 	updatemcp("Download an update if available", new TaskInfoDownloadUpdate()),
 	setup("Choose a version to setup", new TaskInfoSetup(), new String[] {"debug"}),
 	cleanup("Delete all source and class folders", new TaskInfoCleanup(), new String[] {"debug", "src"}),
 	startclient("Runs the client from compiled classes", new TaskInfoRun(0), new String[] {"runbuild"}),
 	startserver("Runs the server from compiled classes", new TaskInfoRun(1), new String[] {"runbuild"}),
-	build("Builds the final jar or zip", new TaskInfoBuild(), new String[] {"debug", "fullbuild", "side", "client", "server"}),
+	build("Builds the final jar or zip", new TaskInfoBuild(), new String[] {"debug", "fullbuild", "side", "client", "server", "threads"}),
 	createpatch("Creates patch", new TaskInfoCreatePatch(), new String[]{}),
 	test("Test", new TaskInfoTest(), new String[]{}),
 	exit("Exit the program", null);
@@ -56,5 +56,13 @@ public enum EnumMode {
 		paramDescs.put("src", "Only clear sources and classes folders");
 		paramDescs.put("fullbuild", "Builds a runnable jar");
 		paramDescs.put("runbuild", "Runs the built jar");
+		paramDescs.put("shards", "Splits decompilation into a number of parallel jobs");
+		paramDescs.put("inmemory", "Passes classes between remapping and decompiling in memory");
+		paramDescs.put("sourcecache", "Reuses decompiled sources shared between workspaces, stored in ~/.retromcp/cache");
+		paramDescs.put("bytecodeconstants", "Replaces GL constants in bytecode before decompiling");
+		paramDescs.put("incremental", "Only recompiles changed sources and sources depending on them");
+		paramDescs.put("fasthash", "Uses CRC32 instead of MD5 for hash tables");
+		paramDescs.put("exportmd5", "Also writes hash tables as text");
+		paramDescs.put("threads", "Number of threads shared by all jobs");
 	}
 }
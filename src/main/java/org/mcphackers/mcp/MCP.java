@@ -6,9 +6,11 @@ import org.fusesource.jansi.AnsiConsole;
 import org.mcphackers.mcp.tasks.info.TaskInfo;
 import org.mcphackers.mcp.tools.Util;
 import org.mcphackers.mcp.tools.VersionsParser;
+import org.mcphackers.mcp.tools.ZipArchive;
+import org.mcphackers.mcp.tools.compiler.CompilerCache;
+import org.mcphackers.mcp.tools.mappings.MappingRepository;
 
 import javax.tools.JavaCompiler;
-import javax.tools.ToolProvider;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -69,7 +71,7 @@ public class MCP {
 		if (args.length <= 0) {
 			startedWithNoParams = true;
 			logger.println(logo);
-			JavaCompiler c = ToolProvider.getSystemJavaCompiler();
+			JavaCompiler c = CompilerCache.getCompiler();
 			if (c == null) {
 				// Likely a JRE
 				logger.println(new Ansi().fgBrightRed().a("Error: Java Development Kit not detected! Compilation will fail!").toString());
@@ -165,7 +167,8 @@ public class MCP {
 		}
 	}
 
-	private static void shutdown() {
+	private static void shutdown() throws IOException {
+		CompilerCache.close();
 		input.close();
 		logger.close();
 	}
@@ -198,6 +201,10 @@ public class MCP {
 				}
 				logger.info("Use -debug for more info");
 			}
+		} finally {
+			// Shared archives and mapping trees are kept for the sides and steps of one task only
+			ZipArchive.releaseAll();
+			MappingRepository.releaseAll();
 		}
 		task.clearInfoList();
 	}
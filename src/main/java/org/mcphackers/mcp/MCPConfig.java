@@ -33,12 +33,19 @@ public class MCPConfig {
 	public static final String SERVER_MD5 = 		 TEMP + "server.md5";
 	public static final String CLIENT_MD5_RO = 		 TEMP + "client_reobf.md5";
 	public static final String SERVER_MD5_RO = 		 TEMP + "server_reobf.md5";
+	public static final String CLIENT_HASHES = 		 TEMP + "client.hashes";
+	public static final String SERVER_HASHES = 		 TEMP + "server.hashes";
+	public static final String CLIENT_HASHES_RO = 	 TEMP + "client_reobf.hashes";
+	public static final String SERVER_HASHES_RO = 	 TEMP + "server_reobf.hashes";
 	public static final String CLIENT_REOBF_JAR = 	 TEMP + "client_reobf.jar";
 	public static final String SERVER_REOBF_JAR = 	 TEMP + "server_reobf.jar";
-	public static final String CLIENT_MAPPINGS_RO =  TEMP + "client_reobf.tiny";
-	public static final String SERVER_MAPPINGS_RO =  TEMP + "server_reobf.tiny";
+	public static final String CLIENT_MAPPINGS_RO =  TEMP + "client_reobf.mappings";
+	public static final String SERVER_MAPPINGS_RO =  TEMP + "server_reobf.mappings";
 	public static final String CLIENT_MAPPINGS_DO =  TEMP + "client_deobf.tiny";
 	public static final String SERVER_MAPPINGS_DO =  TEMP + "server_deobf.tiny";
+	public static final String MAPPING_STORES = 	 TEMP + "mappings/";
+	public static final String CLIENT_COMPILE_STATE = TEMP + "client_compile.state";
+	public static final String SERVER_COMPILE_STATE = TEMP + "server_compile.state";
 	public static final String CLIENT_SOURCES = 	 SRC + "minecraft";
 	public static final String SERVER_SOURCES = 	 SRC + "minecraft_server";
 	public static final String CLIENT_BIN = 		 BIN + "minecraft";
@@ -70,6 +77,14 @@ public class MCPConfig {
 	public boolean runBuild;
 	public String setupVersion;
 	public String[] runArgs;
+	public int decompileShards;
+	public boolean inMemory;
+	public boolean sourceCache;
+	public boolean bytecodeConstants;
+	public boolean incremental;
+	public boolean fastHash;
+	public boolean exportMD5;
+	public int threads;
 
 	public MCPConfig() {
 		resetConfig();
@@ -86,6 +101,14 @@ public class MCPConfig {
 		runBuild = false;
 		setupVersion = null;
 		runArgs = null;
+		decompileShards = 0;
+		inMemory = false;
+		sourceCache = false;
+		bytecodeConstants = false;
+		incremental = false;
+		fastHash = false;
+		exportMD5 = false;
+		threads = 0;
 	}
 
 	public void setParameter(String name, int value) {
@@ -93,6 +116,12 @@ public class MCPConfig {
 			case "side":
 				onlySide = value;
 				break;
+			case "shards":
+				decompileShards = value;
+				break;
+			case "threads":
+				threads = value;
+				break;
 			default:
 				// TODO: Cancel task
 		}
@@ -148,6 +177,24 @@ public class MCPConfig {
 			case "runbuild":
 				runBuild = value;
 				break;
+			case "inmemory":
+				inMemory = value;
+				break;
+			case "sourcecache":
+				sourceCache = value;
+				break;
+			case "bytecodeconstants":
+				bytecodeConstants = value;
+				break;
+			case "incremental":
+				incremental = value;
+				break;
+			case "fasthash":
+				fastHash = value;
+				break;
+			case "exportmd5":
+				exportMD5 = value;
+				break;
 			default:
 				// TODO: Cancel task
 		}
@@ -1,6 +1,7 @@
 package org.mcphackers.mcp;
 
 import org.mcphackers.mcp.tasks.Task;
+import org.mcphackers.mcp.tools.WorkPool;
 
 public class SideThread extends Thread {
 
@@ -19,10 +20,13 @@ public class SideThread extends Thread {
 	}
 
 	public void run() {
+		WorkPool.enterSide();
 		try {
 			task.doTask();
 		} catch (Exception e) {
 			exception = e;
+		} finally {
+			WorkPool.leaveSide();
 		}
 	}
 
@@ -0,0 +1,202 @@
+package org.mcphackers.mcp.tasks;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import org.mcphackers.mcp.ProgressInfo;
+import org.mcphackers.mcp.tools.MemoryGate;
+import org.mcphackers.mcp.tools.WorkPool;
+
+/**
+ * Runs stages of a task as a dependency graph. A stage depends on every stage added before it
+ * which outputs one of its inputs, or which it was explicitly ordered after.
+ * Stages start as soon as all of their dependencies are finished, so independent stages run concurrently
+ * in the {@link WorkPool}.
+ */
+public class StageGraph {
+
+	private final List<Stage> stages = new ArrayList<>();
+
+	public Stage add(String message, int weight, StageAction action) {
+		Stage stage = new Stage(message, weight, action);
+		stages.add(stage);
+		return stage;
+	}
+
+	public void run() throws Exception {
+		ForkJoinPool executor = WorkPool.get();
+		Map<Stage, CompletableFuture<Void>> futures = new HashMap<>();
+		CompletionException error = null;
+		for (Stage stage : stages) {
+			List<CompletableFuture<Void>> dependencies = new ArrayList<>();
+			for (Stage other : stages) {
+				if (other == stage) {
+					break;
+				}
+				if (stage.dependsOn(other)) {
+					dependencies.add(futures.get(other));
+				}
+			}
+			futures.put(stage, CompletableFuture.allOf(dependencies.toArray(new CompletableFuture[0])).thenRunAsync(stage::execute, executor));
+		}
+		try {
+			CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0])).join();
+		} catch (CompletionException e) {
+			error = e;
+		}
+		for (Stage stage : stages) {
+			if (stage.failure != null) {
+				throw stage.failure;
+			}
+		}
+		if (error != null) {
+			if (error.getCause() instanceof Error) {
+				throw (Error)error.getCause();
+			}
+			throw error;
+		}
+	}
+
+	public ProgressInfo getProgress() {
+		double current = 0;
+		int total = 0;
+		String message = null;
+		boolean started = false;
+		for (Stage stage : stages) {
+			total += stage.weight;
+			if (stage.state == Stage.DONE) {
+				current += stage.weight;
+				started = true;
+			}
+			else if (stage.state == Stage.RUNNING) {
+				ProgressInfo info = stage.getProgress();
+				current += stage.weight * Math.min(1D, (double)info.getCurrent() / Math.max(info.getTotal(), 1));
+				if (message == null) {
+					message = info.getMessage();
+				}
+				started = true;
+			}
+		}
+		if (message == null) {
+			message = started ? "Finishing..." : "Idle";
+		}
+		return new ProgressInfo(message, (int)current, Math.max(total, 1));
+	}
+
+	@FunctionalInterface
+	public interface StageAction {
+		void run() throws Exception;
+	}
+
+	public static class Stage {
+		private static final int PENDING = 0;
+		private static final int RUNNING = 1;
+		private static final int DONE = 2;
+
+		private final String message;
+		private final int weight;
+		private final StageAction action;
+		private final List<Path> inputs = new ArrayList<>();
+		private final List<Path> outputs = new ArrayList<>();
+		private final List<Stage> after = new ArrayList<>();
+		private Supplier<ProgressInfo> progress;
+		private LongSupplier memory;
+		private volatile boolean waiting;
+		private volatile int state = PENDING;
+		private volatile Exception failure;
+
+		private Stage(String message, int weight, StageAction action) {
+			this.message = message;
+			this.weight = weight;
+			this.action = action;
+		}
+
+		public Stage inputs(Path... paths) {
+			for (Path path : paths) {
+				inputs.add(path.toAbsolutePath().normalize());
+			}
+			return this;
+		}
+
+		public Stage outputs(Path... paths) {
+			for (Path path : paths) {
+				outputs.add(path.toAbsolutePath().normalize());
+			}
+			return this;
+		}
+
+		/**
+		 * Orders this stage after stages it shares state with other than files
+		 */
+		public Stage after(Stage... stages) {
+			after.addAll(Arrays.asList(stages));
+			return this;
+		}
+
+		public Stage progress(Supplier<ProgressInfo> progress) {
+			this.progress = progress;
+			return this;
+		}
+
+		/**
+		 * Makes this stage wait for the estimated amount of heap memory in {@link MemoryGate}
+		 * before it runs. Must not be used on stages which run other tasks.
+		 */
+		public Stage memory(LongSupplier memory) {
+			this.memory = memory;
+			return this;
+		}
+
+		private boolean dependsOn(Stage stage) {
+			if (after.contains(stage)) {
+				return true;
+			}
+			for (Path input : inputs) {
+				for (Path output : stage.outputs) {
+					if (input.startsWith(output) || output.startsWith(input)) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		private ProgressInfo getProgress() {
+			if (waiting) {
+				return new ProgressInfo("Waiting for memory...", 0, 1);
+			}
+			return progress != null ? progress.get() : new ProgressInfo(message, 0, 1);
+		}
+
+		private void execute() {
+			state = RUNNING;
+			MemoryGate.Reservation reservation = null;
+			try {
+				if (memory != null) {
+					waiting = true;
+					reservation = MemoryGate.reserve(memory.getAsLong());
+					waiting = false;
+				}
+				action.run();
+			} catch (Exception e) {
+				failure = e;
+				throw new CompletionException(e);
+			} finally {
+				if (reservation != null) {
+					reservation.close();
+				}
+				waiting = false;
+				state = DONE;
+			}
+		}
+	}
+}
@@ -14,10 +14,7 @@ import org.mcphackers.mcp.tools.FileUtil;
 public class TaskBuild extends Task {
 
 	private TaskReobfuscate reobfTask;
-
-	private static final int REOBF = 1;
-	private static final int BUILD = 2;
-	private static final int STEPS = 2;
+	private final StageGraph stages = new StageGraph();
 
 	public TaskBuild(int side, TaskInfo info) {
 		super(side, info);
@@ -32,49 +29,34 @@ public class TaskBuild extends Task {
 		Path buildJar = 	Paths.get(chooseFromSide(MCPConfig.BUILD_JAR_CLIENT, MCPConfig.BUILD_JAR_SERVER));
 		Path buildZip = 	Paths.get(chooseFromSide(MCPConfig.BUILD_ZIP_CLIENT, MCPConfig.BUILD_ZIP_SERVER));
 		
-		while(step < STEPS) {
-			step();
-			switch (step) {
-			case REOBF:
-				this.reobfTask.doTask();
-				break;
-			case BUILD:
-				FileUtil.createDirectories(Paths.get(MCPConfig.BUILD));
-				if(MCP.config.fullBuild) {
-					Files.deleteIfExists(buildJar);
-					Files.copy(originalJar, buildJar);
-					List<Path> reobfClasses = FileUtil.walkDirectory(reobfDir, path -> !Files.isDirectory(path));
-					FileUtil.packFilesToZip(buildJar, reobfClasses, reobfDir);
-					List<Path> assets = FileUtil.walkDirectory(bin, path -> !Files.isDirectory(path) && !path.getFileName().toString().endsWith(".class"));
-					FileUtil.packFilesToZip(buildJar, assets, bin);
-					FileUtil.deleteFileInAZip(buildJar, "/META-INF/MOJANG_C.DSA");
-					FileUtil.deleteFileInAZip(buildJar, "/META-INF/MOJANG_C.SF");
-				}
-				else {
-					Files.deleteIfExists(buildZip);
-					FileUtil.compress(reobfDir, buildZip);
-					List<Path> assets = FileUtil.walkDirectory(bin, path -> !Files.isDirectory(path) && !path.getFileName().toString().endsWith(".class"));
-					FileUtil.packFilesToZip(buildZip, assets, bin);
-				}
-				break;
-			}
+		FileUtil.createDirectories(Paths.get(MCPConfig.BUILD));
+		stages.add("Reobfuscating...", 50, reobfTask::doTask).outputs(bin, reobfDir).progress(reobfTask::getProgress);
+		if(MCP.config.fullBuild) {
+			// The original jar is copied while the sources are being reobfuscated
+			stages.add("Building...", 1, () -> {
+				Files.deleteIfExists(buildJar);
+				Files.copy(originalJar, buildJar);
+			}).inputs(originalJar).outputs(buildJar);
+			stages.add("Building...", 2, () -> {
+				List<Path> reobfClasses = FileUtil.walkDirectory(reobfDir, path -> !Files.isDirectory(path));
+				FileUtil.packFilesToZip(buildJar, reobfClasses, reobfDir);
+				List<Path> assets = FileUtil.walkDirectory(bin, path -> !Files.isDirectory(path) && !path.getFileName().toString().endsWith(".class"));
+				FileUtil.packFilesToZip(buildJar, assets, bin);
+				FileUtil.deleteFileInAZip(buildJar, "/META-INF/MOJANG_C.DSA", "/META-INF/MOJANG_C.SF");
+			}).inputs(reobfDir, bin, buildJar);
+		}
+		else {
+			stages.add("Building...", 3, () -> {
+				Files.deleteIfExists(buildZip);
+				FileUtil.compress(reobfDir, buildZip);
+				List<Path> assets = FileUtil.walkDirectory(bin, path -> !Files.isDirectory(path) && !path.getFileName().toString().endsWith(".class"));
+				FileUtil.packFilesToZip(buildZip, assets, bin);
+			}).inputs(reobfDir, bin);
 		}
+		stages.run();
 	}
 
 	public ProgressInfo getProgress() {
-		int total = 100;
-		int current = 0;
-		switch (step) {
-		case REOBF: {
-			current = 1;
-			ProgressInfo info = reobfTask.getProgress();
-			int percent = (int) ((double)info.getCurrent() / info.getTotal() * 49);
-			return new ProgressInfo(info.getMessage(), current + percent, total); }
-		case BUILD:
-			current = 52;
-			return new ProgressInfo("Building...", current, total);
-		default:
-			return super.getProgress();
-		}
+		return stages.getProgress();
 	}
 }
@@ -2,19 +2,40 @@ package org.mcphackers.mcp.tasks;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.mcphackers.mcp.MCP;
 import org.mcphackers.mcp.MCPConfig;
 import org.mcphackers.mcp.ProgressInfo;
+import org.mcphackers.mcp.tasks.StageGraph.Stage;
 import org.mcphackers.mcp.tasks.info.TaskInfo;
 import org.mcphackers.mcp.tools.FileUtil;
+import org.mcphackers.mcp.tools.MemoryGate;
+import org.mcphackers.mcp.tools.StepCache;
+import org.mcphackers.mcp.tools.WorkPool;
+import org.mcphackers.mcp.tools.ZipArchive;
+import org.mcphackers.mcp.tools.constants.Constants;
 import org.mcphackers.mcp.tools.constants.GLConstants;
 import org.mcphackers.mcp.tools.constants.MathConstants;
 import org.mcphackers.mcp.tools.fernflower.Decompiler;
+import org.mcphackers.mcp.tools.mappings.MappingRepository;
 import org.mcphackers.mcp.tools.mappings.MappingUtil;
 import org.mcphackers.mcp.tools.mcinjector.MCInjector;
 
@@ -27,18 +48,12 @@ public class TaskDecompile extends Task {
 	private final Decompiler decompiler;
 	private TaskUpdateMD5 md5Task;
 	private TaskRecompile recompTask;
-	private MemoryMappingTree mappingTree = new MemoryMappingTree();
+	private MemoryMappingTree mappingTree;
+	private Map<String, byte[]> classes;
+	private final AtomicInteger sourcesDone = new AtomicInteger();
+	private int sourcesTotal = 1;
 	
-	private static final int REMAP = 1;
-	private static final int EXCEPTOR = 2;
-	private static final int DECOMPILE = 3;
-	private static final int EXTRACT = 4;
-	private static final int CONSTS = 5;
-	private static final int PATCH = 6;
-	private static final int COPYSRC = 7;
-	private static final int RECOMPILE = 8;
-	private static final int MD5 = 9;
-	private static final int STEPS = 9;
+	private final StageGraph stages = new StageGraph();
 
 	public TaskDecompile(int side, TaskInfo info) {
 		super(side, info);
@@ -60,80 +75,188 @@ public class TaskDecompile extends Task {
 		Path patchesPath 	= Paths.get(chooseFromSide(MCPConfig.CLIENT_PATCHES, MCPConfig.SERVER_PATCHES));
 		Path mappings		= Paths.get(chooseFromSide(MCPConfig.CLIENT_MAPPINGS, MCPConfig.SERVER_MAPPINGS));
 		Path deobfMappings	= Paths.get(chooseFromSide(MCPConfig.CLIENT_MAPPINGS_DO, MCPConfig.SERVER_MAPPINGS_DO));
+		String javadocs		= chooseFromSide(MCPConfig.JAVADOC_CLIENT, MCPConfig.JAVADOC_SERVER);
 		
 		boolean hasLWJGL = side == CLIENT;
+		boolean bytecodeConstants = hasLWJGL && MCP.config.bytecodeConstants;
 		
 		if (Files.exists(srcPath)) {
 			throw new IOException(chooseFromSide("Client", "Server") + " sources found! Aborting.");
 		}
-		for (Path path : new Path[] { Paths.get(tinyOut), Paths.get(excOut), Paths.get(srcZip)}) {
-			Files.deleteIfExists(path);
-		}
 		FileUtil.createDirectories(Paths.get(MCPConfig.TEMP));
-		FileUtil.deleteDirectoryIfExists(ffOut);
-		while(step < STEPS) {
-			step();
-			switch (step) {
-			case REMAP:
-				if (Files.exists(mappings)) {
-					MappingUtil.readMappings(mappings, mappingTree);
-					MappingUtil.modifyClasses(mappingTree, FileSystems.newFileSystem(originalJar, null).getPath("/"), className -> {
-						if (mappingTree.getClass(className) == null) {
-							if(className.lastIndexOf("/") < 0) {
-								return "net/minecraft/src/" + className;
-							}
+		StepCache remapCache = new StepCache(Paths.get(tinyOut)).input(MCP.VERSION).input(originalJar, mappings).input(getLibraryPaths(side));
+		StepCache excCache = new StepCache(Paths.get(excOut)).input(remapCache).input(Paths.get(exc));
+		StepCache decompileCache = new StepCache(Paths.get(srcZip)).input(excCache).input(Paths.get(javadocs)).input(MCP.config.indentionString).input(bytecodeConstants);
+		boolean doPatch = MCP.config.patch && Files.exists(patchesPath);
+
+		Stage remap = stages.add("Remapping JAR...", 1, () -> {
+			// Deobfuscation mappings are needed by reobfuscation, so they are an output in both modes
+			Path remapOutput = Paths.get(MCP.config.inMemory ? excOut : tinyOut);
+			Path[] outputs = Files.exists(mappings) ? new Path[] {remapOutput, deobfMappings} : new Path[] {remapOutput};
+			if (MCP.config.inMemory ? excCache.isUpToDate(outputs) : remapCache.isUpToDate(outputs)) {
+				return;
+			}
+			remapCache.invalidate();
+			Files.deleteIfExists(Paths.get(tinyOut));
+			if (MCP.config.inMemory) {
+				classes = new ConcurrentHashMap<>();
+			}
+			if (Files.exists(mappings)) {
+				// Classes without mappings are added to a copy, the shared tree stays as the file has it
+				mappingTree = new MemoryMappingTree();
+				MappingRepository.get(mappings).accept(mappingTree);
+				MappingUtil.modifyClasses(mappingTree, ZipArchive.get(originalJar), className -> {
+					if (mappingTree.getClass(className) == null) {
+						if(className.lastIndexOf("/") < 0) {
+							return "net/minecraft/src/" + className;
 						}
-						return null;
-					});
-					MappingUtil.writeMappings(deobfMappings, mappingTree);
-					MappingUtil.remap(deobfMappings, originalJar, Paths.get(tinyOut), getLibraryPaths(side), "official", "named");
-				}
-				else {
-					Files.copy(originalJar, Paths.get(tinyOut));
-				}
-				break;
-			case EXCEPTOR:
-				if (Files.exists(Paths.get(exc))) {
-					MCInjector.process(tinyOut, excOut, exc, 0);
+					}
+					return null;
+				});
+				// Written for reobfuscation in later sessions, this one uses the tree in memory
+				MappingUtil.writeMappings(deobfMappings, mappingTree);
+				MappingRepository.put(deobfMappings, mappingTree);
+				ZipArchive.release(originalJar);
+				if (classes != null) {
+					MappingUtil.remap(MappingUtil.createMappingProvider(mappingTree, "named"), originalJar, (name, bytes) -> classes.put(name + ".class", bytes), getLibraryPaths(side));
 				}
 				else {
-					Files.copy(Paths.get(tinyOut), Paths.get(excOut));
+					MappingUtil.remap(MappingUtil.createMappingProvider(mappingTree, "named"), originalJar, Paths.get(tinyOut), getLibraryPaths(side));
 				}
-				// Copying a fixed jar to libs
-				if(side == CLIENT) {
-					Files.deleteIfExists(Paths.get(MCPConfig.CLIENT_FIXED));
-					Files.copy(Paths.get(excOut), Paths.get(MCPConfig.CLIENT_FIXED));
-				}
-				break;
-			case DECOMPILE:
-				this.decompiler.decompile(excOut, srcZip, chooseFromSide(MCPConfig.JAVADOC_CLIENT, MCPConfig.JAVADOC_SERVER));
-				break;
-			case EXTRACT:
-				FileUtil.createDirectories(Paths.get(MCPConfig.SRC));
-				FileUtil.unzipByExtension(Paths.get(srcZip), ffOut, ".java");
-				break;
-			case CONSTS:
-				if(hasLWJGL) {
-					new GLConstants().replace(ffOut);
+			}
+			else if (classes != null) {
+				ZipArchive archive = ZipArchive.get(originalJar);
+				for (String name : archive.getEntryNames()) {
+					if (name.endsWith(".class")) {
+						classes.put(name, archive.read(name));
+					}
 				}
-				new MathConstants().replace(ffOut);
-				break;
-			case PATCH:
-				if(MCP.config.patch && Files.exists(patchesPath)) {
-					patch(ffOut, ffOut, patchesPath, info);
+				ZipArchive.release(originalJar);
+			}
+			else {
+				Files.copy(originalJar, Paths.get(tinyOut));
+			}
+			if (classes == null) {
+				remapCache.store();
+			}
+		}).inputs(originalJar, mappings).outputs(Paths.get(tinyOut), deobfMappings).memory(() -> MemoryGate.estimate(originalJar, MemoryGate.REMAP_FACTOR));
+		stages.add("Applying MCInjector...", 1, () -> {
+			if (classes == null && excCache.isUpToDate(Paths.get(excOut))) {
+				return;
+			}
+			excCache.invalidate();
+			Files.deleteIfExists(Paths.get(excOut));
+			if (classes != null) {
+				if (Files.exists(Paths.get(exc))) {
+					classes = MCInjector.process(classes, exc, 0);
 				}
-				break;
-			case COPYSRC:
+				// Fernflower still lists classes from the jar, so it is written without compression
+				FileUtil.writeZip(Paths.get(excOut), getJarEntries(originalJar, classes), false);
+			}
+			else if (Files.exists(Paths.get(exc))) {
+				MCInjector.process(tinyOut, excOut, exc, 0);
+			}
+			else {
+				Files.copy(Paths.get(tinyOut), Paths.get(excOut));
+			}
+			excCache.store();
+		}).inputs(Paths.get(tinyOut), Paths.get(exc)).outputs(Paths.get(excOut)).after(remap);
+		if(side == CLIENT) {
+			// Copying a fixed jar to libs
+			stages.add("Copying fixed JAR...", 1, () -> {
+				Files.deleteIfExists(Paths.get(MCPConfig.CLIENT_FIXED));
+				Files.copy(Paths.get(excOut), Paths.get(MCPConfig.CLIENT_FIXED));
+			}).inputs(Paths.get(excOut)).outputs(Paths.get(MCPConfig.CLIENT_FIXED));
+		}
+		stages.add("Decompiling...", 80, () -> {
+			if (decompileCache.isUpToDate(Paths.get(srcZip))) {
+				return;
+			}
+			decompileCache.invalidate();
+			// Decompiler reuses sources of unchanged classes from the previous output
+			this.decompiler.setClasses(excOut, classes);
+			this.decompiler.setTransformer(bytecodeConstants ? new GLConstants()::replaceConstants : null);
+			this.decompiler.decompile(excOut, srcZip, javadocs);
+			this.decompiler.setClasses(excOut, null);
+			this.decompiler.setTransformer(null);
+			classes = null;
+			decompileCache.store();
+		}).inputs(Paths.get(excOut), Paths.get(javadocs)).outputs(Paths.get(srcZip)).progress(() -> decompiler.log.initInfo()).memory(() -> MemoryGate.estimate(Paths.get(excOut), MemoryGate.DECOMPILE_FACTOR));
+		stages.add("Processing sources...", 3, () -> {
+			FileUtil.createDirectories(Paths.get(MCPConfig.SRC));
+			FileUtil.deleteDirectoryIfExists(ffOut);
+			processSources(Paths.get(srcZip), srcPath, ffOut, doPatch ? getPatchedFiles(patchesPath) : Collections.emptySet(), hasLWJGL && !bytecodeConstants);
+		}).inputs(Paths.get(srcZip)).outputs(srcPath, ffOut).progress(() -> new ProgressInfo("Processing sources...", sourcesDone.get(), sourcesTotal));
+		if(doPatch) {
+			stages.add("Applying patches...", 1, () -> {
+				// Only sources which have a patch were written to the temp directory
+				FileUtil.createDirectories(ffOut);
+				patch(ffOut, ffOut, patchesPath, info);
 				FileUtil.copyDirectory(ffOut, srcPath, MCP.config.ignorePackages);
-				break;
-			case RECOMPILE:
-				recompTask.doTask();
-				break;
-			case MD5:
-				md5Task.doTask();
-				break;
+				FileUtil.deleteDirectoryIfExists(ffOut);
+			}).inputs(ffOut, patchesPath).outputs(srcPath);
+		}
+		stages.add("Recompiling...", 2, recompTask::doTask).inputs(srcPath, Paths.get(MCPConfig.LIB)).outputs(Paths.get(chooseFromSide(MCPConfig.CLIENT_BIN, MCPConfig.SERVER_BIN))).progress(recompTask::getProgress);
+		stages.add("Updating MD5...", 9, md5Task::doTask).inputs(Paths.get(chooseFromSide(MCPConfig.CLIENT_BIN, MCPConfig.SERVER_BIN))).progress(md5Task::getProgress);
+		stages.run();
+	}
+
+	/**
+	 * Reads every source from the decompiled zip once, replaces constants and writes it to its final location.
+	 * Sources which have a patch are written to <code>patchBase</code> instead.
+	 */
+	private void processSources(Path srcZip, Path srcPath, Path patchBase, Set<String> patched, boolean hasLWJGL) throws Exception {
+		ZipArchive archive = ZipArchive.get(srcZip);
+		List<String> sources = archive.getEntryNames().stream().filter(name -> name.endsWith(".java")).collect(Collectors.toList());
+		// Largest sources first, so that a single large source doesn't finish last
+		sources.sort(Comparator.comparingLong((String name) -> archive.getSize(name)).reversed());
+		GLConstants glConstants = hasLWJGL ? new GLConstants() : null;
+		MathConstants mathConstants = new MathConstants();
+		sourcesTotal = Math.max(sources.size(), 1);
+		sourcesDone.set(0);
+		try {
+			List<Callable<Void>> jobs = new ArrayList<>();
+			for (String name : sources) {
+				jobs.add(() -> {
+					boolean isPatched = patched.contains(name);
+					if (isPatched || !isIgnored(name)) {
+						String code = Constants.replace(new String(archive.read(name)), glConstants, mathConstants);
+						Path out = (isPatched ? patchBase : srcPath).resolve(name);
+						Files.createDirectories(out.getParent());
+						Files.write(out, code.getBytes());
+					}
+					sourcesDone.incrementAndGet();
+					return null;
+				});
+			}
+			WorkPool.invokeAll(jobs);
+		} catch (InterruptedException | ExecutionException ex) {
+			throw new IOException("Processing sources failed", ex.getCause() != null ? ex.getCause() : ex);
+		} finally {
+			ZipArchive.release(srcZip);
+		}
+	}
+
+	private static boolean isIgnored(String name) {
+		for (String excludedFolder : MCP.config.ignorePackages) {
+			if (Paths.get(name).startsWith(Paths.get(excludedFolder))) {
+				return true;
 			}
 		}
+		return false;
+	}
+
+	private static Set<String> getPatchedFiles(Path patches) throws IOException {
+		Set<String> patched = new HashSet<>();
+		try (Stream<Path> stream = Files.walk(patches)) {
+			stream.filter(p -> !Files.isDirectory(p)).forEach(p -> {
+				String name = patches.relativize(p).toString().replace("\\", "/");
+				if (name.endsWith(".patch")) {
+					patched.add(name.substring(0, name.length() - 6));
+				}
+			});
+		}
+		return patched;
 	}
 
 	private static void patch(Path base, Path out, Path patches, TaskInfo info) throws IOException {
@@ -152,6 +275,20 @@ public class TaskDecompile extends Task {
 		}
 	}
 
+	private static Map<String, byte[]> getJarEntries(Path originalJar, Map<String, byte[]> classes) throws IOException {
+		Map<String, byte[]> entries = new TreeMap<>(classes);
+		ZipArchive archive = ZipArchive.get(originalJar);
+		for (String name : archive.getEntryNames()) {
+			String upperName = name.toUpperCase(Locale.ROOT);
+			boolean signature = upperName.startsWith("META-INF/") && (upperName.endsWith(".SF") || upperName.endsWith(".DSA") || upperName.endsWith(".RSA") || upperName.endsWith(".EC"));
+			if (!name.endsWith(".class") && !signature) {
+				entries.put(name, archive.read(name));
+			}
+		}
+		ZipArchive.release(originalJar);
+		return entries;
+	}
+
 	public static Path[] getLibraryPaths(int side) {
 		if(side == CLIENT) {
 			return new Path[] {
@@ -166,44 +303,6 @@ public class TaskDecompile extends Task {
 	}
 
 	public ProgressInfo getProgress() {
-		int total = 100;
-		int current = 0;
-		switch (step) {
-		case REMAP:
-			current = 1;
-			return new ProgressInfo("Remapping JAR...", current, total);
-		case EXCEPTOR:
-			current = 2;
-			return new ProgressInfo("Applying MCInjector...", current, total);
-		case DECOMPILE: {
-			current = 3;
-			ProgressInfo info = decompiler.log.initInfo();
-			int percent = (int)((double)info.getCurrent() / info.getTotal() * 80);
-			return new ProgressInfo(info.getMessage(), current + percent, total); }
-		case EXTRACT:
-			current = 84;
-			return new ProgressInfo("Extracting sources...", current, total);
-		case PATCH:
-			current = 85;
-			return new ProgressInfo("Applying patches...", current, total);
-		case CONSTS:
-			current = 86;
-			return new ProgressInfo("Replacing constants...", current, total);
-		case COPYSRC:
-			current = 87;
-			return new ProgressInfo("Copying sources...", current, total);
-		case RECOMPILE: {
-			current = 88;
-			ProgressInfo info = recompTask.getProgress();
-			int percent = (int)((double)info.getCurrent() / info.getTotal() * 2);
-			return new ProgressInfo(info.getMessage(), current + percent, total); }
-		case MD5: {
-			current = 91;
-			ProgressInfo info = md5Task.getProgress();
-			int percent = (int)((double)info.getCurrent() / info.getTotal() * 9);
-			return new ProgressInfo(info.getMessage(), current + percent, total); }
-		default:
-			return super.getProgress();
-		}
+		return stages.getProgress();
 	}
 }
@@ -7,7 +7,12 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -16,19 +21,25 @@ import javax.tools.DiagnosticCollector;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaFileObject;
 import javax.tools.StandardJavaFileManager;
-import javax.tools.ToolProvider;
 
+import org.mcphackers.mcp.MCP;
 import org.mcphackers.mcp.MCPConfig;
 import org.mcphackers.mcp.ProgressInfo;
+import org.mcphackers.mcp.tasks.StageGraph.Stage;
 import org.mcphackers.mcp.tasks.info.TaskInfo;
+import org.mcphackers.mcp.tools.DigestBuilder;
 import org.mcphackers.mcp.tools.FileUtil;
+import org.mcphackers.mcp.tools.Util;
+import org.mcphackers.mcp.tools.compiler.CompileState;
+import org.mcphackers.mcp.tools.compiler.CompilerCache;
+import org.mcphackers.mcp.tools.compiler.OutputTracker;
 
 public class TaskRecompile extends Task {
 	private int total;
 	private int progress;
-	
-	private static final int RECOMPILE = 1;
-	private static final int COPYRES = 2;
+	private final StageGraph stages = new StageGraph();
+	private Map<String, byte[]> classes;
+	private final Map<String, String> classHashes = new HashMap<>();
 
 	public TaskRecompile(int side, TaskInfo info) {
 		super(side, info);
@@ -38,66 +49,170 @@ public class TaskRecompile extends Task {
 
 	@Override
 	public void doTask() throws Exception {
-		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		JavaCompiler compiler = CompilerCache.getCompiler();
 		if(compiler == null) {
 			throw new RuntimeException("Could not find compiling API");
 		}
-		DiagnosticCollector<JavaFileObject> ds = new DiagnosticCollector<>();
 
 		Path binPath = Paths.get(chooseFromSide(MCPConfig.CLIENT_BIN, 		MCPConfig.SERVER_BIN));
 		Path srcPath = Paths.get(chooseFromSide(MCPConfig.CLIENT_SOURCES, 	MCPConfig.SERVER_SOURCES));
 
-		step();
-		this.progress = 1;
-		FileUtil.deleteDirectoryIfExists(binPath);
-		Files.createDirectories(binPath);
-		this.progress = 2;
+		if (!Files.exists(srcPath)) {
+			throw new IOException(chooseFromSide("Client", "Server") + " sources not found!");
+		}
+		List<String> libraries = new ArrayList();
+		if(side == SERVER) {
+			libraries.add(MCPConfig.SERVER);
+		}
+		else {
+			try(Stream<Path> stream = Files.list(Paths.get(MCPConfig.LIB)).filter(library -> !library.endsWith(".jar")).filter(library -> !Files.isDirectory(library))) {
+				stream.map(Path::toAbsolutePath).map(Path::toString).forEach(libraries::add);
+			}
+		}
+		Path statePath = Paths.get(chooseFromSide(MCPConfig.CLIENT_COMPILE_STATE, MCPConfig.SERVER_COMPILE_STATE));
+		DigestBuilder header = new DigestBuilder().input(System.getProperty("java.version")).input(String.join(File.pathSeparator, libraries));
+		for (String library : libraries) {
+			header.input(Paths.get(library));
+		}
+		CompileState state = MCP.config.incremental && Files.isDirectory(binPath) ? CompileState.read(statePath, header.getDigest()) : null;
+		List<String> options = Arrays.asList(
+				"-d", binPath.toString(),
+				"-cp", String.join(File.pathSeparator, libraries));
 
+		Stage clean = stages.add("Recompiling...", 1, () -> {
+			Files.deleteIfExists(statePath);
+			Files.createDirectories(binPath);
+		});
 		// Compile side
-		if (Files.exists(srcPath)) {
+		stages.add("Recompiling...", 90, () -> {
 			List<File> src = Files.walk(srcPath).filter(path -> !Files.isDirectory(path) && path.getFileName().toString().endsWith(".java")).map(Path::toFile).collect(Collectors.toList());
 			List<File> start = Files.walk(Paths.get(MCPConfig.CONF + "start")).filter(path -> !Files.isDirectory(path) && path.getFileName().toString().endsWith(".java")).map(Path::toFile).collect(Collectors.toList());
 			if(side == CLIENT) {
 				src.addAll(start);
 			}
-			List<String> libraries = new ArrayList();
-			try(Stream<Path> stream = Files.list(Paths.get(MCPConfig.LIB)).filter(library -> !library.endsWith(".jar")).filter(library -> !Files.isDirectory(library))) {
-				libraries = stream.map(Path::toAbsolutePath).map(Path::toString).collect(Collectors.toList());
+			StandardJavaFileManager fileManager = CompilerCache.getFileManager(chooseFromSide("client", "server"), libraries);
+			if (state != null) {
+				recompileIncremental(compiler, fileManager, src, binPath, libraries, state);
+				state.write(statePath, header.getDigest());
+				return;
 			}
-			List<String> options = Arrays.asList(
-					"-d", MCPConfig.CLIENT_BIN,
-					"-cp", String.join(System.getProperty("path.separator"), libraries));
-			if(side == SERVER) {
-				options = Arrays.asList(
-						"-d", MCPConfig.SERVER_BIN,
-						"-cp", MCPConfig.SERVER);
+			OutputTracker tracker = recompile(compiler, fileManager, src, options);
+			classes = tracker.getClasses();
+			// Classes left from sources which no longer exist
+			for (Path path : FileUtil.walkDirectory(binPath, path -> path.getFileName().toString().endsWith(".class"))) {
+				String name = binPath.relativize(path).toString().replace("\\", "/");
+				if (!classes.containsKey(name.substring(0, name.length() - 6)) && !Files.exists(srcPath.resolve(name))) {
+					Files.delete(path);
+				}
 			}
-			this.progress = 3;
-			recompile(compiler, ds, src, options);
-			this.progress = 50;
-			// Copy assets from source folder
-			step();
-			List<Path> assets = FileUtil.walkDirectory(srcPath, path -> !Files.isDirectory(path) && !path.getFileName().toString().endsWith(".java"));
-			int i = 0;
-			for(Path path : assets) {
-				if(srcPath.relativize(path).getParent() != null) {
-					Files.createDirectories(binPath.resolve(srcPath.relativize(path).getParent()));
+			if (MCP.config.incremental) {
+				CompileState newState = new CompileState();
+				for (File file : src) {
+					newState.put(getSourceKey(file), CompileState.Entry.read(Util.getMD5OfFile(file), tracker.getOutputs(file), classes));
 				}
-				Files.copy(path, binPath.resolve(srcPath.relativize(path)));
-				i++;
-				this.progress = 50 + (int)((double)i / assets.size() * 49);
+				newState.write(statePath, header.getDigest());
+			}
+		}).inputs(srcPath).after(clean);
+		// Sync assets from source folder while sources are compiled
+		stages.add("Copying resources...", 9, () -> {
+			FileUtil.syncDirectory(srcPath, binPath,
+					path -> !path.getFileName().toString().endsWith(".java"),
+					path -> !path.getFileName().toString().endsWith(".class"),
+					(synced, total) -> {
+						this.progress = synced;
+						this.total = total;
+					});
+		}).inputs(srcPath).after(clean).progress(() -> new ProgressInfo("Copying resources...", progress, total));
+		stages.run();
+	}
+
+	/**
+	 * Recompiles sources which changed since the previous compilation. Sources which depend on classes
+	 * whose API changed are recompiled as well, until no more API changes.
+	 * Changed constant values cause a recompilation of every source since they are inlined without a reference.
+	 */
+	private void recompileIncremental(JavaCompiler compiler, StandardJavaFileManager fileManager, List<File> src, Path binPath, List<String> libraries, CompileState state) throws Exception {
+		Map<String, File> sources = new TreeMap<>();
+		for (File file : src) {
+			sources.put(getSourceKey(file), file);
+		}
+		Map<String, String> hashes = new HashMap<>();
+		Set<String> changedClasses = new HashSet<>();
+		for (String source : new ArrayList<>(state.getSources())) {
+			if (!sources.containsKey(source)) {
+				CompileState.Entry entry = state.remove(source);
+				deleteOutputs(binPath, entry);
+				changedClasses.addAll(entry.outputs);
+			}
+		}
+		Set<String> compile = state.getDependents(state.getSubtypes(changedClasses));
+		for (Map.Entry<String, File> source : sources.entrySet()) {
+			String hash = Util.getMD5OfFile(source.getValue());
+			hashes.put(source.getKey(), hash);
+			CompileState.Entry entry = state.get(source.getKey());
+			if (entry == null || !entry.hash.equals(hash) || !outputsExist(binPath, entry)) {
+				compile.add(source.getKey());
+			}
+		}
+		List<String> libraryPath = new ArrayList<>();
+		libraryPath.add(binPath.toString());
+		libraryPath.addAll(libraries);
+		List<String> options = Arrays.asList(
+				"-d", binPath.toString(),
+				"-cp", String.join(File.pathSeparator, libraryPath));
+		while (!compile.isEmpty()) {
+			List<File> files = new ArrayList<>();
+			for (String source : compile) {
+				deleteOutputs(binPath, state.get(source));
+				files.add(sources.get(source));
+			}
+			OutputTracker tracker = recompile(compiler, fileManager, files, options);
+			Set<String> apiChanged = new HashSet<>();
+			boolean constantsChanged = false;
+			for (String source : compile) {
+				CompileState.Entry previous = state.get(source);
+				CompileState.Entry entry = CompileState.Entry.read(hashes.get(source), tracker.getOutputs(sources.get(source)), tracker.getClasses());
+				state.put(source, entry);
+				if (previous == null || !previous.api.equals(entry.api)) {
+					apiChanged.addAll(entry.outputs);
+					if (previous != null) {
+						apiChanged.addAll(previous.outputs);
+					}
+				}
+				constantsChanged |= previous != null && !previous.constants.equals(entry.constants);
+			}
+			Set<String> compiled = compile;
+			compile = constantsChanged ? new HashSet<>(state.getSources()) : state.getDependents(state.getSubtypes(apiChanged));
+			compile.removeAll(compiled);
+		}
+	}
+
+	private static String getSourceKey(File file) {
+		return file.getPath().replace("\\", "/");
+	}
+
+	private static boolean outputsExist(Path binPath, CompileState.Entry entry) {
+		for (String name : entry.outputs) {
+			if (!Files.exists(binPath.resolve(name + ".class"))) {
+				return false;
 			}
-			this.progress = 99;
-		} else {
-			throw new IOException(chooseFromSide("Client", "Server") + " sources not found!");
 		}
+		return true;
 	}
 
-	public void recompile(JavaCompiler compiler, DiagnosticCollector<JavaFileObject> ds, Iterable<File> src, Iterable<String> recompileOptions) throws IOException, RuntimeException {
-		StandardJavaFileManager mgr = compiler.getStandardFileManager(ds, null, null);
-		Iterable<? extends JavaFileObject> sources = mgr.getJavaFileObjectsFromFiles(src);
+	private static void deleteOutputs(Path binPath, CompileState.Entry entry) throws IOException {
+		if (entry != null) {
+			for (String name : entry.outputs) {
+				Files.deleteIfExists(binPath.resolve(name + ".class"));
+			}
+		}
+	}
+
+	public OutputTracker recompile(JavaCompiler compiler, StandardJavaFileManager fileManager, Iterable<File> src, Iterable<String> recompileOptions) throws IOException, RuntimeException {
+		DiagnosticCollector<JavaFileObject> ds = new DiagnosticCollector<>();
+		OutputTracker mgr = new OutputTracker(fileManager);
+		Iterable<? extends JavaFileObject> sources = fileManager.getJavaFileObjectsFromFiles(src);
 		JavaCompiler.CompilationTask task = compiler.getTask(null, mgr, ds, recompileOptions, null, sources);
-		mgr.close();
 		boolean success = task.call();
 		for (Diagnostic<? extends JavaFileObject> diagnostic : ds.getDiagnostics())
 			if(diagnostic.getKind() == Diagnostic.Kind.ERROR || diagnostic.getKind() == Diagnostic.Kind.WARNING) {
@@ -107,20 +222,32 @@ public class TaskRecompile extends Task {
 								  		diagnostic.getSource().getName(),
 								  		diagnostic.getMessage(null)));
 			}
-		mgr.close();
+		// The file manager stays open for the next recompile
+		mgr.flush();
+		mgr.awaitWrites();
+		classHashes.putAll(mgr.getHashes());
 		if (!success) {
 			throw new RuntimeException("Compilation error!");
 		}
+		return mgr;
+	}
+
+	/**
+	 * @return bytes of all classes by internal name or null if only some sources were recompiled
+	 */
+	public Map<String, byte[]> getClasses() {
+		return classes;
+	}
+
+	/**
+	 * @return MD5 hashes of recompiled classes by internal name
+	 */
+	public Map<String, String> getClassHashes() {
+		return classHashes;
 	}
 
 	@Override
 	public ProgressInfo getProgress() {
-		if(step == RECOMPILE) {
-			return new ProgressInfo("Recompiling...", progress, total);
-		}
-		if(step == COPYRES) {
-			return new ProgressInfo("Copying resources...", progress, total);
-		}
-		return super.getProgress();
+		return stages.getProgress();
 	}
 }
@@ -4,31 +4,43 @@ import net.fabricmc.mappingio.adapter.MappingNsCompleter;
 import net.fabricmc.mappingio.adapter.MappingSourceNsSwitch;
 import net.fabricmc.mappingio.tree.MappingTree;
 import net.fabricmc.mappingio.tree.MemoryMappingTree;
+import org.mcphackers.mcp.MCP;
 import org.mcphackers.mcp.MCPConfig;
 import org.mcphackers.mcp.ProgressInfo;
+import org.mcphackers.mcp.tasks.StageGraph.Stage;
 import org.mcphackers.mcp.tasks.info.TaskInfo;
 import org.mcphackers.mcp.tools.FileUtil;
-import org.mcphackers.mcp.tools.Util;
+import org.mcphackers.mcp.tools.HashIndex;
+import org.mcphackers.mcp.tools.MemoryGate;
+import org.mcphackers.mcp.tools.StepCache;
+import org.mcphackers.mcp.tools.mappings.ClassNameTable;
+import org.mcphackers.mcp.tools.mappings.MappingRepository;
+import org.mcphackers.mcp.tools.mappings.MappingStore;
 import org.mcphackers.mcp.tools.mappings.MappingUtil;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
 
 public class TaskReobfuscate extends Task {
-	private final Map<String, String> recompHashes = new HashMap<>();
-	private final Map<String, String> originalHashes = new HashMap<>();
+	private HashIndex recompHashes;
+	private HashIndex originalHashes;
 
 	private MemoryMappingTree mappingTree = new MemoryMappingTree();
+	private MemoryMappingTree storedTree;
 
 	private final Map<String, String> reobfPackages = new HashMap<>();
 
 	private final TaskUpdateMD5 md5Task = new TaskUpdateMD5(side, info);
 
+	private final StageGraph stages = new StageGraph();
+
 	public TaskReobfuscate(int side, TaskInfo info) {
 		super(side, info);
 	}
@@ -41,50 +53,87 @@ public class TaskReobfuscate extends Task {
 		Path reobfDir = Paths.get(chooseFromSide(MCPConfig.CLIENT_REOBF, MCPConfig.SERVER_REOBF));
 		Path reobfMappings = Paths.get(chooseFromSide(MCPConfig.CLIENT_MAPPINGS_RO, MCPConfig.SERVER_MAPPINGS_RO));
 		Path deobfMappings = Paths.get(chooseFromSide(MCPConfig.CLIENT_MAPPINGS_DO, MCPConfig.SERVER_MAPPINGS_DO));
-
-		step();
-		md5Task.updateMD5(true);
-
-		if (Files.exists(reobfBin)) {
-			boolean hasMappings = Files.exists(deobfMappings);
-			FileUtil.deleteDirectoryIfExists(reobfDir);
-			step();
-			gatherMD5Hashes(true);
-			gatherMD5Hashes(false);
-
-			step();
+		Path hashes = Paths.get(chooseFromSide(MCPConfig.CLIENT_HASHES, MCPConfig.SERVER_HASHES));
+		Path md5 = Paths.get(chooseFromSide(MCPConfig.CLIENT_MD5, MCPConfig.SERVER_MD5));
+		Path hashesReobf = Paths.get(chooseFromSide(MCPConfig.CLIENT_HASHES_RO, MCPConfig.SERVER_HASHES_RO));
+		boolean hasMappings = Files.exists(deobfMappings);
+
+		stages.add("Updating MD5...", 50, () -> md5Task.updateMD5(true)).outputs(reobfBin, hashesReobf).progress(md5Task::getProgress);
+		Stage readOriginalHashes = stages.add("Gathering MD5 hashes...", 1, () -> this.originalHashes = HashIndex.read(hashes, md5)).inputs(hashes, md5);
+		Stage readRecompHashes = stages.add("Gathering MD5 hashes...", 1, () -> this.recompHashes = HashIndex.read(hashesReobf)).inputs(hashesReobf);
+		// Read while classes are hashed, the list of classes only decides whether the stored mappings are current
+		Stage readMappings = stages.add("Reading mappings...", 1, () -> {
 			if (hasMappings) {
-				MappingUtil.readMappings(deobfMappings, mappingTree);
-				flipMappingTree();
-				MappingUtil.modifyClasses(mappingTree, reobfBin, className -> {
-					if (mappingTree.getClass(className) == null) { // Class isn't present in original mappings
-						String packageName = className.lastIndexOf("/") >= 0 ? className.substring(0, className.lastIndexOf("/") + 1) : null;
-						String obfPackage = reobfPackages.get(packageName);
-						if (obfPackage == null) {
-							obfPackage = "";
-						}
-						return obfPackage + (className.lastIndexOf("/") >= 0 ? className.substring(className.lastIndexOf("/") + 1) : className);
-					}
-					return null; // Returning null skips remapping this class
-				});
-				MappingUtil.writeMappings(reobfMappings, mappingTree);
-
+				storedTree = readMappingStore(reobfMappings);
+				if (storedTree == null) {
+					mappingTree = MappingRepository.get(deobfMappings);
+					flipMappingTree();
+				}
 			}
-
+		}).inputs(deobfMappings, reobfMappings);
+		// Reobfuscation mappings only depend on the deobfuscation mappings and which classes there are
+		Stage updateMappings = stages.add("Updating mappings...", 1, () -> {
+			if (hasMappings) {
+				StepCache mappingsCache = new StepCache(reobfMappings).input(MCP.VERSION).input(deobfMappings);
+				for (int i = 0; i < recompHashes.size(); i++) {
+					mappingsCache.input(recompHashes.getName(i));
+				}
+				if (storedTree != null && mappingsCache.isUpToDate(reobfMappings)) {
+					mappingTree = storedTree;
+					return;
+				}
+				mappingsCache.invalidate();
+				if (storedTree != null) {
+					mappingTree = MappingRepository.get(deobfMappings);
+					flipMappingTree();
+				}
+				addNewClasses(reobfBin);
+				MappingStore.write(reobfMappings, mappingTree);
+				mappingsCache.store();
+			}
+		}).outputs(reobfMappings).after(readMappings, readRecompHashes);
+		stages.add("Reobfuscating...", 46, () -> {
+			if (!Files.exists(reobfBin)) {
+				throw new IOException(chooseFromSide("Client", "Server") + " classes not found!");
+			}
+			// Jar of previous versions, classes are written to the reobf folder directly
 			Files.deleteIfExists(reobfJar);
+			FileUtil.deleteDirectoryIfExists(reobfDir);
+			Files.createDirectories(reobfDir);
+			Set<String> changed = recompHashes.getChanged(originalHashes);
 			if (hasMappings) {
-				MappingUtil.remap(reobfMappings, reobfBin, reobfJar, TaskDecompile.getLibraryPaths(side), "named", "official");
-			} else {
-				FileUtil.compress(reobfBin, reobfJar);
+				remapChanged(reobfBin, reobfDir, changed);
 			}
-			step();
-			unpack(reobfJar, reobfDir);
-		} else {
-			throw new IOException(chooseFromSide("Client", "Server") + " classes not found!");
+			// Resources and classes without mappings are copied as they are
+			for (Path file : FileUtil.walkDirectory(reobfBin, path -> !Files.isDirectory(path) && !(hasMappings && path.toString().endsWith(".class")))) {
+				String name = reobfBin.relativize(file).toString().replace("\\", "/");
+				if (isChanged(name.replace(".class", ""), changed)) {
+					Path target = reobfDir.resolve(name);
+					Files.createDirectories(target.getParent());
+					Files.copy(file, target);
+				}
+			}
+		}).inputs(reobfBin).outputs(reobfDir).after(updateMappings, readOriginalHashes, readRecompHashes).memory(() -> MemoryGate.estimate(reobfBin, MemoryGate.REMAP_FACTOR));
+		stages.run();
+	}
+
+	/**
+	 * @return null if the store can't be read, such as a missing or damaged store or one of an older version
+	 */
+	private static MemoryMappingTree readMappingStore(Path reobfMappings) {
+		if (!Files.exists(reobfMappings)) {
+			return null;
+		}
+		MemoryMappingTree storedTree = new MemoryMappingTree();
+		try {
+			MappingStore.read(reobfMappings).accept(storedTree);
+		} catch (IOException | RuntimeException e) {
+			return null;
 		}
+		return storedTree;
 	}
 
-	private void flipMappingTree() throws IOException {
+		private void flipMappingTree() throws IOException {
 		((MappingTree) mappingTree).getClasses().forEach(classEntry -> {
 			String obfName = classEntry.getName("official");
 			String deobfName = classEntry.getName("named");
@@ -106,62 +155,64 @@ public class TaskReobfuscate extends Task {
 		mappingTree = namedTree;
 	}
 
-	@Override
-	public ProgressInfo getProgress() {
-		int total = 100;
-		int current;
-		switch (step) {
-			case 1: {
-				current = 1;
-				ProgressInfo info = md5Task.getProgress();
-				int percent = info.getCurrent() / info.getTotal() * 50;
-				return new ProgressInfo(info.getMessage(), current + percent, total);
+	/**
+	 * Adds classes which aren't in the original mappings, moved to the obfuscated package
+	 */
+	private void addNewClasses(Path reobfBin) throws IOException {
+		Map<String, byte[]> classes = md5Task.getRecompiledClasses();
+		Function<String, String> getDstName = className -> {
+			if (mappingTree.getClass(className) == null) { // Class isn't present in original mappings
+				String packageName = className.lastIndexOf("/") >= 0 ? className.substring(0, className.lastIndexOf("/") + 1) : null;
+				String obfPackage = reobfPackages.get(packageName);
+				if (obfPackage == null) {
+					obfPackage = "";
+				}
+				return obfPackage + (className.lastIndexOf("/") >= 0 ? className.substring(className.lastIndexOf("/") + 1) : className);
 			}
-			case 2:
-				current = 51;
-				return new ProgressInfo("Gathering MD5 hashes...", current, total);
-			case 3:
-				current = 52;
-				return new ProgressInfo("Reobfuscating...", current, total);
-			case 4:
-				current = 54;
-				return new ProgressInfo("Unpacking...", current, total);
-			default:
-				return super.getProgress();
+			return null; // Returning null skips remapping this class
+		};
+		// Freshly compiled classes are still in memory
+		if (classes != null) {
+			MappingUtil.modifyClasses(mappingTree, classes, getDstName);
+		} else {
+			MappingUtil.modifyClasses(mappingTree, reobfBin, getDstName);
 		}
 	}
 
-	private void gatherMD5Hashes(boolean reobf) throws IOException {
-		Path md5 = Paths.get(reobf ? chooseFromSide(MCPConfig.CLIENT_MD5_RO, MCPConfig.SERVER_MD5_RO)
-				: chooseFromSide(MCPConfig.CLIENT_MD5, MCPConfig.SERVER_MD5));
-
-		try (BufferedReader reader = Files.newBufferedReader(md5)) {
-			String line = reader.readLine();
-			while (line != null) {
-				String[] tokens = line.split(" ");
-				if (reobf) {
-					recompHashes.put(tokens[0], tokens[1]);
-				} else {
-					originalHashes.put(tokens[0], tokens[1]);
-				}
+	@Override
+	public ProgressInfo getProgress() {
+		return stages.getProgress();
+	}
 
-				// Read next line
-				line = reader.readLine();
-			}
+	/**
+	 * Remaps all classes, so that the hierarchy is complete, but only writes the changed ones
+	 */
+	private void remapChanged(Path reobfBin, Path reobfDir, Set<String> changed) throws IOException {
+		ClassNameTable reobfClasses = ClassNameTable.of(mappingTree, 0);
+		// Decided once per mapped class, remapped classes then only need a lookup
+		boolean[] changedClass = new boolean[reobfClasses.size()];
+		for (int i = 0; i < changedClass.length; i++) {
+			changedClass[i] = isChanged(reobfClasses.getSrcName(i), changed);
+		}
+		try {
+			MappingUtil.remap(MappingUtil.createMappingProvider(mappingTree, "official"), reobfBin, (name, bytes) -> {
+				int index = reobfClasses.indexOfDst(name);
+				if (index >= 0 ? changedClass[index] : isChanged(name, changed)) {
+					try {
+						Path target = reobfDir.resolve(name + ".class");
+						Files.createDirectories(target.getParent());
+						Files.write(target, bytes);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			}, TaskDecompile.getLibraryPaths(side));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
 		}
 	}
 
-	private void unpack(final Path src, final Path destDir) throws IOException {
-		Map<String, String> reobfClasses = new HashMap<>();
-		((MappingTree) mappingTree).getClasses().forEach(classEntry -> {
-			reobfClasses.put(classEntry.getName("named"), classEntry.getDstName(0));
-		});
-		FileUtil.unzip(src, destDir, entry -> {
-			String name = entry.getName().replace(".class", "");
-			String deobfName = Util.getKey(reobfClasses, name);
-			if (deobfName == null) deobfName = name.replace("\\", "/");
-			String hash = originalHashes.get(deobfName);
-			return !entry.isDirectory() && (hash == null || !hash.equals(recompHashes.get(deobfName)));
-		});
+	private boolean isChanged(String deobfName, Set<String> changed) {
+		return changed.contains(deobfName) || !originalHashes.contains(deobfName);
 	}
 }
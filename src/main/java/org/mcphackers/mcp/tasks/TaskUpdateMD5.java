@@ -1,26 +1,31 @@
 package org.mcphackers.mcp.tasks;
 
+import org.mcphackers.mcp.MCP;
 import org.mcphackers.mcp.MCPConfig;
 import org.mcphackers.mcp.ProgressInfo;
 import org.mcphackers.mcp.tasks.info.TaskInfo;
+import org.mcphackers.mcp.tools.FileUtil;
+import org.mcphackers.mcp.tools.HashIndex;
 import org.mcphackers.mcp.tools.Util;
+import org.mcphackers.mcp.tools.WorkPool;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TaskUpdateMD5 extends Task {
 	private int total;
 	private int progress;
 	public boolean recompile;
 	private TaskRecompile recompTask;
-	
-	private static final int RECOMPILE = 1;
-	private static final int MD5 = 2;
-	
+	private final StageGraph stages = new StageGraph();
 	
 	public TaskUpdateMD5(int side, TaskInfo info) {
 		super(side, info);
@@ -37,53 +42,67 @@ public class TaskUpdateMD5 extends Task {
 
 	public void updateMD5(boolean reobf) throws Exception {
 		Path binPath 	= Paths.get(chooseFromSide(MCPConfig.CLIENT_BIN, MCPConfig.SERVER_BIN));
+		Path hashes = Paths.get(reobf ? chooseFromSide(MCPConfig.CLIENT_HASHES_RO, MCPConfig.SERVER_HASHES_RO)
+				  				   	  : chooseFromSide(MCPConfig.CLIENT_HASHES, 	MCPConfig.SERVER_HASHES));
 		Path md5 = Paths.get(reobf ? chooseFromSide(MCPConfig.CLIENT_MD5_RO, MCPConfig.SERVER_MD5_RO)
 				  				   : chooseFromSide(MCPConfig.CLIENT_MD5, 	 MCPConfig.SERVER_MD5));
-		step();
+		// Hashes of reobfuscated classes are compared to the original hashes and have to use the same hash function
+		Path original = Paths.get(chooseFromSide(MCPConfig.CLIENT_HASHES, MCPConfig.SERVER_HASHES));
+		Path originalMD5 = Paths.get(chooseFromSide(MCPConfig.CLIENT_MD5, MCPConfig.SERVER_MD5));
+		HashIndex.Algorithm algorithm = reobf && (Files.exists(original) || Files.exists(originalMD5)) ? HashIndex.read(original, originalMD5).getAlgorithm()
+				: MCP.config.fastHash ? HashIndex.Algorithm.CRC32 : HashIndex.Algorithm.MD5;
 		if(recompile) {
-			new TaskRecompile(side, info).doTask();
+			stages.add("Recompiling...", 50, recompTask::doTask).outputs(binPath).progress(recompTask::getProgress);
 		}
-		step();
+		stages.add("Updating MD5...", 50, () -> writeHashes(binPath, hashes, md5, algorithm)).inputs(binPath).outputs(hashes, md5).progress(() -> new ProgressInfo("Updating MD5...", progress, this.total));
+		stages.run();
+	}
+
+	private void writeHashes(Path binPath, Path hashes, Path md5, HashIndex.Algorithm algorithm) throws IOException, InterruptedException, ExecutionException {
 		if (Files.exists(binPath)) {
-			BufferedWriter writer = new BufferedWriter(new FileWriter(md5.toFile()));
-			this.total = (int)Files.walk(binPath)
-					.parallel()
-					.filter(p -> !p.toFile().isDirectory())
-					.count();
-			Files.walkFileTree(binPath, new SimpleFileVisitor<Path>() {
-				@Override
-				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-					try {
-						String md5_hash = Util.getMD5OfFile(file.toFile());
-						String fileName = Paths.get(chooseFromSide(MCPConfig.CLIENT_BIN, MCPConfig.SERVER_BIN)).relativize(file).toString().replace("\\", "/").replace(".class", "");
-						writer.append(fileName).append(" ").append(md5_hash).append("\n");
-						progress++;
-					} catch (NoSuchAlgorithmException ex) {
-						ex.printStackTrace();
+			List<Path> files = FileUtil.walkDirectory(binPath, p -> !Files.isDirectory(p));
+			// Classes which were just recompiled are hashed already or still in memory
+			Map<String, String> classHashes = recompile ? recompTask.getClassHashes() : Collections.emptyMap();
+			Map<String, byte[]> classes = getRecompiledClasses();
+			Map<String, byte[]> digests = new ConcurrentHashMap<>();
+			AtomicInteger hashed = new AtomicInteger();
+			this.total = files.size();
+			List<Callable<Void>> jobs = new ArrayList<>();
+			for (Path file : files) {
+				jobs.add(() -> {
+					String fileName = binPath.relativize(file).toString().replace("\\", "/").replace(".class", "");
+					byte[] digest;
+					if (algorithm == HashIndex.Algorithm.MD5) {
+						String md5_hash = classHashes.get(fileName);
+						digest = md5_hash != null ? Util.fromHex(md5_hash) : Util.getMD5Digest(file.toFile());
+					} else {
+						byte[] bytes = classes != null ? classes.get(fileName) : null;
+						digest = bytes != null ? Util.getCRC32Digest(bytes) : Util.getCRC32Digest(file.toFile());
 					}
-					return FileVisitResult.CONTINUE;
-				}
-			});
-			writer.close();
+					digests.put(fileName, digest);
+					progress = hashed.incrementAndGet();
+					return null;
+				});
+			}
+			WorkPool.invokeAll(jobs);
+			HashIndex.write(hashes, algorithm, digests);
+			if (MCP.config.exportMD5) {
+				HashIndex.read(hashes).export(md5);
+			}
 		} else {
 			throw new IOException(chooseFromSide("Client", "Server") + " classes not found!");
 		}
 	}
 
+	/**
+	 * @return bytes of all recompiled classes by internal name or null if they have to be read from disk
+	 */
+	public Map<String, byte[]> getRecompiledClasses() {
+		return recompile ? recompTask.getClasses() : null;
+	}
+
 	@Override
 	public ProgressInfo getProgress() {
-		int total = 100;
-		int current = 0;
-		switch(step) {
-		case RECOMPILE: {
-			current = 1;
-			ProgressInfo info = recompTask.getProgress();
-			int percent = (int) ((double)info.getCurrent() / info.getTotal() * 2);
-			return new ProgressInfo(info.getMessage(), current + percent, total); }
-		case MD5:
-			current = 50 + (int)((double)progress / this.total * 50);
-			return new ProgressInfo("Updating MD5...", current, total);
-		}
-		return super.getProgress();
+		return stages.getProgress();
 	}
 }
@@ -26,7 +26,7 @@ public abstract class TaskInfo {
 		return this.completionInfo;
 	}
 
-	public void addInfo(String err) {
+	public synchronized void addInfo(String err) {
 		this.completionInfo.add(err);
 	}
 }
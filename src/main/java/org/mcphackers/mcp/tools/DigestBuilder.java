@@ -0,0 +1,79 @@
+package org.mcphackers.mcp.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * MD5 digest of a sequence of values and files. Every value is prefixed with its length, so that
+ * different sequences can't produce the same input.
+ */
+public class DigestBuilder {
+
+	// Hashed at once by getDigest, so that nested builders can share the digest of the thread
+	private final ByteArrayOutputStream inputs = new ByteArrayOutputStream();
+	private String digest;
+
+	public DigestBuilder input(String value) {
+		byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+		update(bytes.length);
+		inputs.write(bytes, 0, bytes.length);
+		return this;
+	}
+
+	public DigestBuilder input(boolean value) {
+		return input(String.valueOf(value));
+	}
+
+	/**
+	 * Adds the path, and the contents of the file or of every file in the directory
+	 */
+	public DigestBuilder input(Path... paths) throws IOException {
+		for(Path path : paths) {
+			input(path.toString().replace("\\", "/"));
+			if(Files.isDirectory(path)) {
+				List<Path> files;
+				try(Stream<Path> stream = Files.walk(path)) {
+					files = stream.filter(p -> !Files.isDirectory(p)).sorted().collect(Collectors.toList());
+				}
+				update(files.size());
+				for(Path file : files) {
+					input(path.relativize(file).toString().replace("\\", "/"));
+					hashFile(file);
+				}
+			}
+			else if(Files.exists(path)) {
+				hashFile(path);
+			}
+			else {
+				update(-1);
+			}
+		}
+		return this;
+	}
+
+	public String getDigest() {
+		if(digest == null) {
+			digest = Util.getMD5(inputs.toByteArray());
+		}
+		return digest;
+	}
+
+	private void update(int value) {
+		inputs.write(value >>> 24);
+		inputs.write(value >>> 16);
+		inputs.write(value >>> 8);
+		inputs.write(value);
+	}
+
+	private void hashFile(Path file) throws IOException {
+		byte[] fileDigest = Util.getMD5Digest(file.toFile());
+		update((int)Files.size(file));
+		inputs.write(fileDigest, 0, fileDigest.length);
+	}
+}
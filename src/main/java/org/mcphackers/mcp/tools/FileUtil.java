@@ -16,12 +16,23 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -38,6 +49,7 @@ public class FileUtil {
 	}
 	
 	public static void packFilesToZip(Path sourceZip, Iterable<Path> files, Path relativeTo) throws IOException {
+		ZipArchive.release(sourceZip);
 		try(FileSystem fs = FileSystems.newFileSystem(sourceZip, null)) {
 			for(Path file : files) {
 				Path fileInsideZipPath = fs.getPath(relativeTo.relativize(file).toString());
@@ -49,17 +61,21 @@ public class FileUtil {
 		}
 	}
 	
-	public static void deleteFileInAZip(Path sourceZip, String file) throws IOException {
+	public static void deleteFileInAZip(Path sourceZip, String... files) throws IOException {
+		ZipArchive.release(sourceZip);
 		try(FileSystem fs = FileSystems.newFileSystem(sourceZip, null)) {
-			Path fileInsideZipPath = fs.getPath(file);
-			Files.deleteIfExists(fileInsideZipPath);
+			for(String file : files) {
+				Path fileInsideZipPath = fs.getPath(file);
+				Files.deleteIfExists(fileInsideZipPath);
+			}
 		}
 	}
 	
 	public static void copyFileFromAZip(Path sourceZip, String file, Path out) throws IOException {
-		try(FileSystem fs = FileSystems.newFileSystem(sourceZip, null)) {
-			Path fileInsideZipPath = fs.getPath(file);
-			Files.copy(fileInsideZipPath, out);
+		try {
+			Files.write(out, ZipArchive.get(sourceZip).read(file.startsWith("/") ? file.substring(1) : file), StandardOpenOption.CREATE_NEW);
+		} finally {
+			ZipArchive.release(sourceZip);
 		}
 	}
 
@@ -179,6 +195,61 @@ public class FileUtil {
 		copyDirectory(sourceFolder, targetFolder, new String[] {});
 	}
 
+	/**
+	 * Brings files of the target folder up to date with the source folder. Files with the same size and
+	 * modification time are skipped, changed files are copied. Files are never linked, so that writing to
+	 * a target file can't change its source.
+	 * @param files which files of the source folder to sync
+	 * @param stale which files of the target folder to remove if the source folder doesn't have them
+	 * @param progress called with the number of synced files and the total after every synced file
+	 */
+	public static void syncDirectory(Path sourceFolder, Path targetFolder, Predicate<Path> files, Predicate<Path> stale, BiConsumer<Integer, Integer> progress) throws IOException {
+		Set<Path> paths = new HashSet<>();
+		for (Path source : walkDirectory(sourceFolder, p -> !Files.isDirectory(p) && files.test(p))) {
+			paths.add(sourceFolder.relativize(source));
+		}
+		if (Files.isDirectory(targetFolder)) {
+			for (Path target : walkDirectory(targetFolder, p -> !Files.isDirectory(p) && stale.test(p))) {
+				if (!paths.contains(targetFolder.relativize(target))) {
+					Files.delete(target);
+				}
+			}
+		}
+		Set<Path> directories = new HashSet<>();
+		AtomicInteger synced = new AtomicInteger();
+		List<Callable<Void>> jobs = new ArrayList<>();
+		for (Path path : paths) {
+			Path source = sourceFolder.resolve(path);
+			Path target = targetFolder.resolve(path);
+			if (directories.add(target.getParent())) {
+				Files.createDirectories(target.getParent());
+			}
+			jobs.add(() -> {
+				if (!isUpToDate(source, target)) {
+					// Also replaces hard links made by previous versions
+					Files.deleteIfExists(target);
+					Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES);
+				}
+				progress.accept(synced.incrementAndGet(), paths.size());
+				return null;
+			});
+		}
+		try {
+			WorkPool.invokeAll(jobs);
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException("Syncing " + targetFolder + " failed", e.getCause() != null ? e.getCause() : e);
+		}
+	}
+
+	private static boolean isUpToDate(Path source, Path target) throws IOException {
+		if (!Files.exists(target) || Files.isSameFile(source, target)) {
+			return false;
+		}
+		BasicFileAttributes sourceAttributes = Files.readAttributes(source, BasicFileAttributes.class);
+		BasicFileAttributes targetAttributes = Files.readAttributes(target, BasicFileAttributes.class);
+		return sourceAttributes.size() == targetAttributes.size() && sourceAttributes.lastModifiedTime().equals(targetAttributes.lastModifiedTime());
+	}
+
 	public static void compress(Path sourceDir, Path target) throws IOException {
 		final ZipOutputStream outputStream = new ZipOutputStream(new FileOutputStream(target.toFile()));
 		Files.walkFileTree(sourceDir, new SimpleFileVisitor<Path>() {
@@ -195,6 +266,27 @@ public class FileUtil {
 		outputStream.close();
 	}
 	
+	public static void writeZip(Path target, Map<String, byte[]> entries, boolean compress) throws IOException {
+		ZipArchive.release(target);
+		try(ZipOutputStream outputStream = new ZipOutputStream(Files.newOutputStream(target))) {
+			CRC32 crc = new CRC32();
+			for(Map.Entry<String, byte[]> entry : entries.entrySet()) {
+				byte[] bytes = entry.getValue();
+				ZipEntry zipEntry = new ZipEntry(entry.getKey());
+				if(!compress) {
+					crc.reset();
+					crc.update(bytes);
+					zipEntry.setMethod(ZipEntry.STORED);
+					zipEntry.setSize(bytes.length);
+					zipEntry.setCrc(crc.getValue());
+				}
+				outputStream.putNextEntry(zipEntry);
+				outputStream.write(bytes);
+				outputStream.closeEntry();
+			}
+		}
+	}
+	
 	public static void copyResource(InputStream is, Path out) throws IOException {
 		byte[] data = Util.readAllBytes(is);
 		Files.write(out, data);
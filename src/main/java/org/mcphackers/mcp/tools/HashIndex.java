@@ -0,0 +1,242 @@
+package org.mcphackers.mcp.tools;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Read-only view of a hash table of classes. The file is read once and closed, so it can be rewritten while the view is in use.
+ * Names are sorted by their UTF-8 bytes and every name has a digest of the same width, so lookups are a binary search.
+ * <p>
+ * Layout: magic, version, algorithm, digest width, count, then one record per name (offset of the name, digest)
+ * and the names, each prefixed with its length.
+ */
+public class HashIndex {
+
+	private static final int MAGIC = 0x4D435048;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 12;
+
+	public enum Algorithm {
+		MD5(16),
+		/** CRC32 and length of the file. Not cryptographic, but enough to tell if a class changed */
+		CRC32(8);
+
+		public final int width;
+
+		Algorithm(int width) {
+			this.width = width;
+		}
+	}
+
+	private final Algorithm algorithm;
+	private final int count;
+	private final ByteBuffer buffer;
+
+	private HashIndex(Path path) throws IOException {
+		buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.get(4) != VERSION) {
+			throw new IOException(path + " is not a hash index");
+		}
+		int algorithmIndex = buffer.get(5);
+		if (algorithmIndex < 0 || algorithmIndex >= Algorithm.values().length || buffer.getShort(6) != Algorithm.values()[algorithmIndex].width) {
+			throw new IOException(path + " is not a hash index");
+		}
+		algorithm = Algorithm.values()[algorithmIndex];
+		count = buffer.getInt(8);
+	}
+
+	public static HashIndex read(Path path) throws IOException {
+		return new HashIndex(path);
+	}
+
+	/**
+	 * Reads the index or, in workspaces of previous versions which only have the text hash table, makes it from that table first
+	 * @param legacy hash table in text format: name and hex MD5 digest per line
+	 */
+	public static synchronized HashIndex read(Path path, Path legacy) throws IOException {
+		if (!Files.exists(path) && Files.exists(legacy)) {
+			Map<String, byte[]> digests = new HashMap<>();
+			for (String line : Files.readAllLines(legacy)) {
+				int separator = line.lastIndexOf(' ');
+				if (separator < 0) {
+					continue;
+				}
+				byte[] digest = Util.fromHex(line.substring(separator + 1).trim());
+				if (digest.length != Algorithm.MD5.width) {
+					throw new IOException(legacy + " is not a hash table");
+				}
+				digests.put(line.substring(0, separator), digest);
+			}
+			Path temp = Paths.get(path + ".tmp");
+			write(temp, Algorithm.MD5, digests);
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+		return new HashIndex(path);
+	}
+
+	/**
+	 * @param digests digests of classes by name, each of the width of the algorithm
+	 */
+	public static void write(Path path, Algorithm algorithm, Map<String, byte[]> digests) throws IOException {
+		Map<byte[], byte[]> sorted = new TreeMap<>(HashIndex::compare);
+		for (Map.Entry<String, byte[]> entry : digests.entrySet()) {
+			if (entry.getValue().length != algorithm.width) {
+				throw new IllegalArgumentException("Digest of " + entry.getKey() + " has the wrong width");
+			}
+			sorted.put(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue());
+		}
+		int recordSize = 4 + algorithm.width;
+		int nameOffset = HEADER_SIZE + recordSize * sorted.size();
+		ByteBuffer header = ByteBuffer.allocate(nameOffset);
+		header.putInt(MAGIC).put((byte)VERSION).put((byte)algorithm.ordinal()).putShort((short)algorithm.width).putInt(sorted.size());
+		for (Map.Entry<byte[], byte[]> entry : sorted.entrySet()) {
+			header.putInt(nameOffset).put(entry.getValue());
+			nameOffset += 2 + entry.getKey().length;
+		}
+		try (OutputStream out = Files.newOutputStream(path)) {
+			out.write(header.array());
+			for (byte[] name : sorted.keySet()) {
+				out.write(name.length >> 8);
+				out.write(name.length);
+				out.write(name);
+			}
+		}
+	}
+
+	public Algorithm getAlgorithm() {
+		return algorithm;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public String getName(int index) {
+		return new String(getNameBytes(index), StandardCharsets.UTF_8);
+	}
+
+	public byte[] getDigest(int index) {
+		byte[] digest = new byte[algorithm.width];
+		ByteBuffer view = buffer.duplicate();
+		view.position(getRecordOffset(index) + 4);
+		view.get(digest);
+		return digest;
+	}
+
+	/**
+	 * @return digest of the class or null if it's not in the index
+	 */
+	public byte[] get(String name) {
+		int index = indexOf(name.getBytes(StandardCharsets.UTF_8));
+		return index < 0 ? null : getDigest(index);
+	}
+
+	public boolean contains(String name) {
+		return indexOf(name.getBytes(StandardCharsets.UTF_8)) >= 0;
+	}
+
+	/**
+	 * @return names of classes which aren't in the other index or have a different digest there
+	 */
+	public Set<String> getChanged(HashIndex other) throws IOException {
+		if (other.algorithm != algorithm) {
+			throw new IOException("Hash tables were made with different hash functions. Update MD5 with the same options");
+		}
+		Set<String> changed = new HashSet<>();
+		// Both indexes are sorted, so they are compared in one pass
+		int j = 0;
+		for (int i = 0; i < count; i++) {
+			byte[] name = getNameBytes(i);
+			int cmp = -1;
+			while (j < other.count && (cmp = compare(other.getNameBytes(j), name)) < 0) {
+				j++;
+			}
+			if (j >= other.count || cmp != 0 || !equalDigests(other, j, i)) {
+				changed.add(new String(name, StandardCharsets.UTF_8));
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Writes the index in the text format of previous versions: name and hex digest per line
+	 */
+	public void export(Path path) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+			for (int i = 0; i < count; i++) {
+				writer.append(getName(i)).append(" ").append(Util.toHex(getDigest(i))).append("\n");
+			}
+		}
+	}
+
+	private int indexOf(byte[] name) {
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compare(getNameBytes(mid), name);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	private boolean equalDigests(HashIndex other, int otherIndex, int index) {
+		int offset = getRecordOffset(index) + 4;
+		int otherOffset = other.getRecordOffset(otherIndex) + 4;
+		for (int i = 0; i < algorithm.width; i++) {
+			if (buffer.get(offset + i) != other.buffer.get(otherOffset + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int getRecordOffset(int index) {
+		return HEADER_SIZE + index * (4 + algorithm.width);
+	}
+
+	private int getNameOffset(int index) {
+		return buffer.getInt(getRecordOffset(index));
+	}
+
+	private int getNameLength(int index) {
+		return buffer.getShort(getNameOffset(index)) & 0xFFFF;
+	}
+
+	private byte[] getNameBytes(int index) {
+		byte[] name = new byte[getNameLength(index)];
+		ByteBuffer view = buffer.duplicate();
+		view.position(getNameOffset(index) + 2);
+		view.get(name);
+		return name;
+	}
+
+	private static int compare(byte[] a, byte[] b) {
+		int length = Math.min(a.length, b.length);
+		for (int i = 0; i < length; i++) {
+			int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return a.length - b.length;
+	}
+}
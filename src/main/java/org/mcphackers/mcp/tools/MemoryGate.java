@@ -0,0 +1,124 @@
+package org.mcphackers.mcp.tools;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipFile;
+
+/**
+ * Admission control for memory heavy stages. A stage reserves its estimated memory before it runs.
+ * If other reservations are held and the heap doesn't have room for the estimate, the stage waits until
+ * memory is released. A stage is always admitted when no other reservation is held.
+ */
+public final class MemoryGate {
+
+	/** Approximate heap use per byte of a jar while its classes are remapped */
+	public static final int REMAP_FACTOR = 12;
+	/** Approximate heap use per byte of a jar while it is decompiled */
+	public static final int DECOMPILE_FACTOR = 40;
+	private static final long PER_CLASS = 16 * 1024;
+
+	private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+	private static final Object LOCK = new Object();
+	private static long reserved;
+	private static int reservations;
+
+	private MemoryGate() {
+	}
+
+	/**
+	 * @return estimated heap use of processing a jar or a directory of classes
+	 */
+	public static long estimate(Path input, int factor) {
+		try {
+			if (Files.isDirectory(input)) {
+				long size = 0;
+				int classes = 0;
+				for (Path file : FileUtil.walkDirectory(input, path -> !Files.isDirectory(path))) {
+					size += Files.size(file);
+					classes += file.getFileName().toString().endsWith(".class") ? 1 : 0;
+				}
+				return size * factor + classes * PER_CLASS;
+			}
+			if (Files.exists(input)) {
+				// Only the central directory is read and the file is closed right away, without sharing it
+				long classes;
+				try (ZipFile zipFile = new ZipFile(input.toFile())) {
+					classes = zipFile.stream().filter(entry -> entry.getName().endsWith(".class")).count();
+				}
+				return Files.size(input) * factor + classes * PER_CLASS;
+			}
+		} catch (IOException ignored) {
+		}
+		return 0;
+	}
+
+	public static Reservation reserve(long bytes) throws InterruptedException {
+		Admission admission = new Admission(bytes);
+		ForkJoinPool.managedBlock(admission);
+		return new Reservation(bytes);
+	}
+
+	private static long getAvailable() {
+		MemoryUsage heap = MEMORY.getHeapMemoryUsage();
+		long max = heap.getMax() > 0 ? heap.getMax() : Runtime.getRuntime().maxMemory();
+		return max - heap.getUsed() - reserved;
+	}
+
+	private static class Admission implements ForkJoinPool.ManagedBlocker {
+		private final long bytes;
+		private boolean admitted;
+
+		private Admission(long bytes) {
+			this.bytes = bytes;
+		}
+
+		@Override
+		public boolean block() throws InterruptedException {
+			synchronized (LOCK) {
+				while (!isReleasable()) {
+					// Memory used by finished stages is only visible after garbage collection
+					LOCK.wait(500);
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public boolean isReleasable() {
+			synchronized (LOCK) {
+				if (!admitted && (reservations == 0 || getAvailable() >= bytes)) {
+					reserved += bytes;
+					reservations++;
+					admitted = true;
+				}
+				return admitted;
+			}
+		}
+	}
+
+	public static class Reservation implements AutoCloseable {
+		private final long bytes;
+		private boolean released;
+
+		private Reservation(long bytes) {
+			this.bytes = bytes;
+		}
+
+		@Override
+		public void close() {
+			synchronized (LOCK) {
+				if (!released) {
+					released = true;
+					reserved -= bytes;
+					reservations--;
+					LOCK.notifyAll();
+				}
+			}
+		}
+	}
+}
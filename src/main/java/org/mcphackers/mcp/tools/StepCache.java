@@ -0,0 +1,68 @@
+package org.mcphackers.mcp.tools;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Records a digest of everything a pipeline step depends on next to the step's output.
+ * If the digest of the current inputs matches the recorded one and the outputs still exist,
+ * the step can be skipped and the previous output reused.
+ */
+public class StepCache {
+
+	private final Path record;
+	private final DigestBuilder inputs = new DigestBuilder();
+
+	public StepCache(Path output) {
+		record = Paths.get(output.toString() + ".cache");
+	}
+
+	public StepCache input(String value) {
+		inputs.input(value);
+		return this;
+	}
+
+	public StepCache input(boolean value) {
+		inputs.input(value);
+		return this;
+	}
+
+	public StepCache input(StepCache previous) {
+		return input(previous.getDigest());
+	}
+
+	public StepCache input(Path... paths) throws IOException {
+		inputs.input(paths);
+		return this;
+	}
+
+	public String getDigest() {
+		return inputs.getDigest();
+	}
+
+	/**
+	 * @return true if the recorded digest matches the current inputs and all outputs exist
+	 */
+	public boolean isUpToDate(Path... outputs) throws IOException {
+		if(!Files.exists(record)) {
+			return false;
+		}
+		for(Path output : outputs) {
+			if(!Files.exists(output)) {
+				return false;
+			}
+		}
+		return getDigest().equals(new String(Files.readAllBytes(record), StandardCharsets.UTF_8).trim());
+	}
+
+	public void invalidate() throws IOException {
+		Files.deleteIfExists(record);
+	}
+
+	public void store() throws IOException {
+		Files.write(record, getDigest().getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -6,6 +6,8 @@ import org.json.JSONObject;
 import org.mcphackers.mcp.MCP;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -14,12 +16,24 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Scanner;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
 
 public class Util {
 
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	// Digests and buffers are reused by every hash computed on the same thread
+	private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+	private static final ThreadLocal<ByteBuffer> READ_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(64 * 1024));
+
 	public static int runCommand(String[] cmd, Path dir, boolean doLog) throws IOException, InterruptedException {
 		ProcessBuilder procBuilder = new ProcessBuilder(cmd);
 		if(dir != null) {
@@ -151,35 +165,65 @@ public class Util {
 		}
 	}
 
-	public static String getMD5OfFile(File file) throws IOException, NoSuchAlgorithmException {
-		MessageDigest md = MessageDigest.getInstance("MD5");
-		FileInputStream fs = new FileInputStream(file);
-		BufferedInputStream bs = new BufferedInputStream(fs);
-		byte[] buffer = new byte[1024];
-		int bytesRead;
+	public static String getMD5OfFile(File file) throws IOException {
+		return toHex(getMD5Digest(file));
+	}
 
-		while ((bytesRead = bs.read(buffer, 0, buffer.length)) != -1) {
-			md.update(buffer, 0, bytesRead);
-		}
-		byte[] digest = md.digest();
+	public static byte[] getMD5Digest(File file) throws IOException {
+		MessageDigest md = MD5.get();
+		readFile(file, md::update);
+		return md.digest();
+	}
 
-		StringBuilder sb = new StringBuilder();
-		for (byte bite : digest) {
-			sb.append(String.format("%02x", bite & 0xff));
-		}
-		bs.close();
-		return sb.toString();
+	public static String getMD5(byte[] bytes) {
+		return toHex(MD5.get().digest(bytes));
 	}
-	
-	public static <K, V> K getKey(Map<K, V> map, V value) {
-		for (Entry<K, V> entry : map.entrySet()) {
-			if (entry.getValue() != null && entry.getValue().equals(value)) {
-				return entry.getKey();
+
+	/**
+	 * @return CRC32 followed by the length, which is faster than MD5 for telling if a file changed
+	 */
+	public static byte[] getCRC32Digest(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		long length = file.length();
+		readFile(file, crc::update);
+		return ByteBuffer.allocate(8).putInt((int)crc.getValue()).putInt((int)length).array();
+	}
+
+	public static byte[] getCRC32Digest(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return ByteBuffer.allocate(8).putInt((int)crc.getValue()).putInt(bytes.length).array();
+	}
+
+	private static void readFile(File file, Consumer<ByteBuffer> consumer) throws IOException {
+		ByteBuffer buffer = READ_BUFFER.get();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			buffer.clear();
+			while (channel.read(buffer) != -1) {
+				buffer.flip();
+				consumer.accept(buffer);
+				buffer.clear();
 			}
 		}
-		return null;
 	}
 
+	public static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+	public static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte)Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return bytes;
+	}
+	
 	public static String getJava() {
 		return System.getProperties().getProperty("java.home") + File.separator + "bin" + File.separator + "java";
 	}
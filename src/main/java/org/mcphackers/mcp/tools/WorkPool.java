@@ -0,0 +1,80 @@
+package org.mcphackers.mcp.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mcphackers.mcp.MCP;
+
+/**
+ * Process-wide pool of worker threads shared by both sides and all stages of a task.
+ * The number of threads is taken from the <code>threads</code> parameter and defaults to the number of processors.
+ */
+public final class WorkPool {
+
+	private static final AtomicInteger activeSides = new AtomicInteger();
+	private static ForkJoinPool pool;
+	private static int poolThreads;
+
+	private WorkPool() {
+	}
+
+	public static synchronized ForkJoinPool get() {
+		int threads = getThreads();
+		if (pool == null || poolThreads != threads) {
+			if (pool != null) {
+				pool.shutdown();
+			}
+			// First in, first out, so that jobs of both sides are picked up in the order they were submitted
+			pool = new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+			poolThreads = threads;
+		}
+		return pool;
+	}
+
+	public static int getThreads() {
+		return MCP.config.threads > 0 ? MCP.config.threads : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * @return number of threads a side can use for work which isn't run in the pool
+	 */
+	public static int getShare() {
+		return Math.max(1, getThreads() / Math.max(1, activeSides.get()));
+	}
+
+	public static void enterSide() {
+		activeSides.incrementAndGet();
+	}
+
+	public static void leaveSide() {
+		activeSides.decrementAndGet();
+	}
+
+	/**
+	 * Runs all jobs in the pool and waits for their results. Jobs which haven't started yet are cancelled
+	 * if one of them fails.
+	 */
+	public static <T> List<T> invokeAll(List<? extends Callable<T>> jobs) throws InterruptedException, ExecutionException {
+		ForkJoinPool pool = get();
+		List<Future<T>> futures = new ArrayList<>();
+		for (Callable<T> job : jobs) {
+			futures.add(pool.submit(job));
+		}
+		List<T> results = new ArrayList<>();
+		try {
+			for (Future<T> future : futures) {
+				results.add(future.get());
+			}
+		} finally {
+			for (Future<T> future : futures) {
+				future.cancel(false);
+			}
+		}
+		return results;
+	}
+}
@@ -0,0 +1,279 @@
+package org.mcphackers.mcp.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Read-only view of a zip archive. The central directory is indexed once when the archive is opened
+ * and entries are read with positional reads, so any number of threads can read at once.
+ * Archives are shared through {@link #get(Path)} and stay open until they are released, the file on disk changes
+ * or the task ends.
+ * Releasing an archive closes the file once running reads finish, so it can be replaced or deleted after.
+ */
+public class ZipArchive {
+
+	private static final Map<Path, ZipArchive> ARCHIVES = new HashMap<>();
+
+	private static final int LOCAL_HEADER = 0x04034b50;
+	private static final int CENTRAL_HEADER = 0x02014b50;
+	private static final int END_HEADER = 0x06054b50;
+
+	private final Path path;
+	private final long lastModified;
+	private final long size;
+	private final Map<String, Entry> entries = new LinkedHashMap<>();
+	private FileChannel channel;
+	private int readers;
+	private boolean released;
+
+	private ZipArchive(Path path) throws IOException {
+		this.path = path;
+		this.lastModified = Files.getLastModifiedTime(path).toMillis();
+		this.channel = FileChannel.open(path, StandardOpenOption.READ);
+		this.size = channel.size();
+		try {
+			readCentralDirectory();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	public static ZipArchive get(Path path) throws IOException {
+		Path key = path.toAbsolutePath().normalize();
+		synchronized (ARCHIVES) {
+			ZipArchive archive = ARCHIVES.get(key);
+			if (archive == null || archive.isStale()) {
+				if (archive != null) {
+					archive.close();
+				}
+				archive = new ZipArchive(key);
+				ARCHIVES.put(key, archive);
+			}
+			return archive;
+		}
+	}
+
+	/**
+	 * Drops the shared view of an archive and closes the file as soon as no read is running.
+	 * Must be called before the archive is modified or deleted.
+	 * Views which were handed out before open the file again for each read.
+	 */
+	public static void release(Path path) {
+		synchronized (ARCHIVES) {
+			ZipArchive archive = ARCHIVES.remove(path.toAbsolutePath().normalize());
+			if (archive != null) {
+				archive.close();
+			}
+		}
+	}
+
+	public static void releaseAll() {
+		synchronized (ARCHIVES) {
+			for (ZipArchive archive : ARCHIVES.values()) {
+				archive.close();
+			}
+			ARCHIVES.clear();
+		}
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public List<String> getEntryNames() {
+		return Collections.unmodifiableList(new ArrayList<>(entries.keySet()));
+	}
+
+	public boolean hasEntry(String name) {
+		return entries.containsKey(name);
+	}
+
+	public long getSize(String name) {
+		Entry entry = entries.get(name);
+		return entry == null ? -1 : entry.size;
+	}
+
+	public byte[] read(String name) throws IOException {
+		Entry entry = entries.get(name);
+		if (entry == null) {
+			throw new IOException("Entry not found: " + name);
+		}
+		ByteBuffer header = read(entry.offset, 30);
+		if (header.getInt(0) != LOCAL_HEADER) {
+			throw new IOException("Invalid local header for " + name + " in " + path);
+		}
+		long dataOffset = entry.offset + 30 + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+		byte[] compressed = read(dataOffset, entry.compressedSize).array();
+		if (entry.method == ZipEntry.STORED) {
+			return compressed;
+		}
+		if (entry.method != ZipEntry.DEFLATED) {
+			throw new IOException("Unsupported compression method " + entry.method + " for " + name);
+		}
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(compressed);
+			byte[] data = new byte[entry.size];
+			int read = 0;
+			while (read < data.length) {
+				int n = inflater.inflate(data, read, data.length - read);
+				if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				read += n;
+			}
+			if (read != data.length) {
+				throw new IOException("Truncated entry " + name + " in " + path);
+			}
+			return data;
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid deflate data for " + name + " in " + path, e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private boolean isStale() {
+		try {
+			return Files.size(path) != size || Files.getLastModifiedTime(path).toMillis() != lastModified;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Reads from the file at the given position. The file is opened again if the archive was released
+	 * or another reader was interrupted, which closes the file for everyone
+	 */
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (true) {
+			FileChannel channel = acquire();
+			try {
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, position + buffer.position()) < 0) {
+						throw new IOException("Unexpected end of " + path);
+					}
+				}
+				buffer.flip();
+				return buffer;
+			} catch (ClosedByInterruptException e) {
+				throw e;
+			} catch (ClosedChannelException ignored) {
+				// Closed by an interrupted reader, read the rest from a new channel
+			} finally {
+				done();
+			}
+		}
+	}
+
+	private synchronized FileChannel acquire() throws IOException {
+		if (channel == null || !channel.isOpen()) {
+			channel = FileChannel.open(path, StandardOpenOption.READ);
+		}
+		readers++;
+		return channel;
+	}
+
+	private synchronized void done() {
+		if (--readers == 0 && released) {
+			closeChannel();
+		}
+	}
+
+	/**
+	 * Closes the file, or once the last running read finishes. Reads after that close the file again when they are done
+	 */
+	private synchronized void close() {
+		released = true;
+		if (readers == 0) {
+			closeChannel();
+		}
+	}
+
+	private void closeChannel() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+			}
+			channel = null;
+		}
+	}
+
+	private void readCentralDirectory() throws IOException {
+		int tailLength = (int)Math.min(size, 22 + 0xFFFF);
+		ByteBuffer tail = read(size - tailLength, tailLength);
+		int end = -1;
+		for (int i = tailLength - 22; i >= 0; i--) {
+			if (tail.getInt(i) == END_HEADER) {
+				end = i;
+				break;
+			}
+		}
+		if (end < 0) {
+			throw new IOException("Not a zip archive: " + path);
+		}
+		int count = tail.getShort(end + 10) & 0xFFFF;
+		long directoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+		int directorySize = tail.getInt(end + 12);
+		if (count == 0xFFFF || directoryOffset == 0xFFFFFFFFL) {
+			throw new IOException("Zip64 archives are not supported: " + path);
+		}
+		ByteBuffer buffer = read(directoryOffset, directorySize);
+		int offset = 0;
+		for (int i = 0; i < count; i++) {
+			if (buffer.getInt(offset) != CENTRAL_HEADER) {
+				throw new IOException("Invalid central directory in " + path);
+			}
+			int method = buffer.getShort(offset + 10) & 0xFFFF;
+			int compressedSize = buffer.getInt(offset + 20);
+			int uncompressedSize = buffer.getInt(offset + 24);
+			int nameLength = buffer.getShort(offset + 28) & 0xFFFF;
+			int extraLength = buffer.getShort(offset + 30) & 0xFFFF;
+			int commentLength = buffer.getShort(offset + 32) & 0xFFFF;
+			long localOffset = buffer.getInt(offset + 42) & 0xFFFFFFFFL;
+			byte[] name = new byte[nameLength];
+			ByteBuffer view = buffer.duplicate();
+			view.position(offset + 46);
+			view.get(name);
+			String entryName = new String(name, StandardCharsets.UTF_8);
+			if (!entryName.endsWith("/")) {
+				entries.putIfAbsent(entryName, new Entry(method, compressedSize, uncompressedSize, localOffset));
+			}
+			offset += 46 + nameLength + extraLength + commentLength;
+		}
+	}
+
+	private static class Entry {
+		final int method;
+		final int compressedSize;
+		final int size;
+		final long offset;
+
+		Entry(int method, int compressedSize, int size, long offset) {
+			this.method = method;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.offset = offset;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package org.mcphackers.mcp.tools.compiler;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.mcphackers.mcp.tools.Util;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Reads class references and the API of compiled classes
+ */
+public final class ClassScanner {
+
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_CLASS = 7;
+
+	private ClassScanner() {
+	}
+
+	/**
+	 * Passes every class named in the constant pool, including classes of descriptors and signatures
+	 */
+	public static void getReferences(ClassReader reader, Consumer<String> references) {
+		char[] buffer = new char[reader.getMaxStringLength()];
+		for (int i = 1; i < reader.getItemCount(); i++) {
+			int offset = reader.getItem(i);
+			// Second slot of long and double constants
+			if (offset == 0) {
+				continue;
+			}
+			int tag = reader.readByte(offset - 1);
+			if (tag == CONSTANT_CLASS) {
+				String name = reader.readUTF8(offset, buffer);
+				if (name.startsWith("[")) {
+					getDescriptorReferences(name, references);
+				} else {
+					references.accept(name);
+				}
+			} else if (tag == CONSTANT_UTF8) {
+				byte[] value = new byte[reader.readUnsignedShort(offset)];
+				for (int j = 0; j < value.length; j++) {
+					value[j] = (byte)reader.readByte(offset + 2 + j);
+				}
+				if (value.length > 0 && (value[0] == '(' || value[0] == 'L' || value[0] == '[')) {
+					getDescriptorReferences(new String(value, StandardCharsets.UTF_8), references);
+				}
+			}
+		}
+	}
+
+	private static void getDescriptorReferences(String descriptor, Consumer<String> references) {
+		int start = descriptor.indexOf('L');
+		while (start >= 0) {
+			int end = start + 1;
+			while (end < descriptor.length() && descriptor.charAt(end) != ';' && descriptor.charAt(end) != '<') {
+				end++;
+			}
+			if (end >= descriptor.length()) {
+				return;
+			}
+			references.accept(descriptor.substring(start + 1, end));
+			start = descriptor.indexOf('L', end);
+		}
+	}
+
+	/**
+	 * Adds everything other classes can depend on: the class header and non-private members.
+	 * Values of constants are added separately, since they are inlined into other classes without a reference
+	 */
+	public static void getApi(ClassReader reader, Set<String> lines, Set<String> constants) {
+		String owner = reader.getClassName();
+		reader.accept(new ClassVisitor(Opcodes.ASM9) {
+			@Override
+			public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+				lines.add(owner + " class " + access + " " + signature + " " + superName + " " + Arrays.toString(interfaces));
+			}
+
+			@Override
+			public void visitInnerClass(String name, String outerName, String innerName, int access) {
+				lines.add(owner + " inner " + access + " " + name + " " + outerName + " " + innerName);
+			}
+
+			@Override
+			public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+				if ((access & Opcodes.ACC_PRIVATE) == 0) {
+					lines.add(owner + " field " + access + " " + name + " " + descriptor + " " + signature);
+					if (value != null) {
+						constants.add(owner + " " + name + " " + descriptor + " " + value);
+					}
+				}
+				return null;
+			}
+
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+				if ((access & Opcodes.ACC_PRIVATE) == 0) {
+					lines.add(owner + " method " + access + " " + name + descriptor + " " + signature + " " + Arrays.toString(exceptions));
+				}
+				return null;
+			}
+		}, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+	}
+
+	public static String getDigest(Collection<String> lines) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		for (String line : lines) {
+			md.update(line.getBytes(StandardCharsets.UTF_8));
+			md.update((byte)'\n');
+		}
+		return Util.toHex(md.digest());
+	}
+}
@@ -0,0 +1,172 @@
+package org.mcphackers.mcp.tools.compiler;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Dependency graph of the previous compilation. For every source it records a hash of the source,
+ * the classes compiled from it, digests of their API and constant values, the classes of other sources they reference
+ * and the classes of other sources they extend or implement.
+ */
+public class CompileState {
+
+	private final Map<String, Entry> sources = new TreeMap<>();
+
+	/**
+	 * @return state written by the previous compilation or null if it was made with other options
+	 */
+	public static CompileState read(Path file, String header) throws IOException {
+		if (!Files.exists(file)) {
+			return null;
+		}
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		if (lines.isEmpty() || !lines.get(0).equals(header)) {
+			return null;
+		}
+		CompileState state = new CompileState();
+		for (String line : lines.subList(1, lines.size())) {
+			String[] parts = line.split("\t", -1);
+			if (parts.length == 7) {
+				state.sources.put(parts[0], new Entry(parts[1], parts[2], parts[3], split(parts[4]), split(parts[5]), split(parts[6])));
+			}
+		}
+		return state;
+	}
+
+	public void write(Path file, String header) throws IOException {
+		Set<String> classes = new HashSet<>();
+		for (Entry entry : sources.values()) {
+			classes.addAll(entry.outputs);
+		}
+		try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			writer.write(header);
+			writer.newLine();
+			for (Map.Entry<String, Entry> source : sources.entrySet()) {
+				Entry entry = source.getValue();
+				// Only references to classes of other sources are needed
+				Set<String> references = getForeign(entry.references, entry, classes);
+				Set<String> supertypes = getForeign(entry.supertypes, entry, classes);
+				writer.write(source.getKey() + "\t" + entry.hash + "\t" + entry.api + "\t" + entry.constants + "\t" + String.join(",", entry.outputs) + "\t" + String.join(",", references) + "\t" + String.join(",", supertypes));
+				writer.newLine();
+			}
+		}
+	}
+
+	public Set<String> getSources() {
+		return sources.keySet();
+	}
+
+	public Entry get(String source) {
+		return sources.get(source);
+	}
+
+	public void put(String source, Entry entry) {
+		sources.put(source, entry);
+	}
+
+	public Entry remove(String source) {
+		return sources.remove(source);
+	}
+
+	/**
+	 * @return sources which reference any of the given classes of another source
+	 */
+	public Set<String> getDependents(Collection<String> classes) {
+		Set<String> dependents = new TreeSet<>();
+		for (Map.Entry<String, Entry> source : sources.entrySet()) {
+			for (String reference : source.getValue().references) {
+				if (classes.contains(reference) && !source.getValue().outputs.contains(reference)) {
+					dependents.add(source.getKey());
+					break;
+				}
+			}
+		}
+		return dependents;
+	}
+
+	/**
+	 * Members inherited from a class are referenced through the subclass, so a changed API of a class
+	 * is a changed API of every class which extends or implements it
+	 * @return the given classes and the classes of all sources which extend or implement any of them, directly or not
+	 */
+	public Set<String> getSubtypes(Collection<String> classes) {
+		Set<String> subtypes = new HashSet<>(classes);
+		boolean added = true;
+		while (added) {
+			added = false;
+			for (Entry entry : sources.values()) {
+				if (!subtypes.containsAll(entry.outputs) && !Collections.disjoint(entry.supertypes, subtypes)) {
+					added |= subtypes.addAll(entry.outputs);
+				}
+			}
+		}
+		return subtypes;
+	}
+
+	private static Set<String> getForeign(Set<String> names, Entry entry, Set<String> classes) {
+		Set<String> foreign = new TreeSet<>();
+		for (String name : names) {
+			if (classes.contains(name) && !entry.outputs.contains(name)) {
+				foreign.add(name);
+			}
+		}
+		return foreign;
+	}
+
+	private static Set<String> split(String value) {
+		return value.isEmpty() ? new TreeSet<>() : new TreeSet<>(Arrays.asList(value.split(",")));
+	}
+
+	public static class Entry {
+		public final String hash;
+		public final String api;
+		public final String constants;
+		public final Set<String> outputs;
+		public final Set<String> references;
+		public final Set<String> supertypes;
+
+		private Entry(String hash, String api, String constants, Set<String> outputs, Set<String> references, Set<String> supertypes) {
+			this.hash = hash;
+			this.api = api;
+			this.constants = constants;
+			this.outputs = outputs;
+			this.references = references;
+			this.supertypes = supertypes;
+		}
+
+		/**
+		 * Reads API and references of the classes compiled from a source
+		 * @param classes bytes of compiled classes by internal name
+		 */
+		public static Entry read(String hash, Set<String> outputs, Map<String, byte[]> classes) {
+			Set<String> api = new TreeSet<>();
+			Set<String> constants = new TreeSet<>();
+			Set<String> references = new TreeSet<>();
+			Set<String> supertypes = new TreeSet<>();
+			for (String name : outputs) {
+				ClassReader reader = new ClassReader(classes.get(name));
+				ClassScanner.getApi(reader, api, constants);
+				ClassScanner.getReferences(reader, references::add);
+				if (reader.getSuperName() != null) {
+					supertypes.add(reader.getSuperName());
+				}
+				supertypes.addAll(Arrays.asList(reader.getInterfaces()));
+			}
+			return new Entry(hash, ClassScanner.getDigest(api), ClassScanner.getDigest(constants), outputs, references, supertypes);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package org.mcphackers.mcp.tools.compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Keeps the compiler and its file managers alive between commands of a session, so that
+ * opened libraries and the symbol tables of the JDK are reused by later recompiles.
+ * A file manager is reopened when any of the libraries of its class path changes.
+ */
+public final class CompilerCache {
+
+	private static final Map<String, Entry> fileManagers = new HashMap<>();
+	private static JavaCompiler compiler;
+
+	private CompilerCache() {
+	}
+
+	public static synchronized JavaCompiler getCompiler() {
+		if (compiler == null) {
+			compiler = ToolProvider.getSystemJavaCompiler();
+		}
+		return compiler;
+	}
+
+	/**
+	 * @param key identifies the user of the file manager, as a file manager can't be used by two compilations at once
+	 * @return file manager which was used with the same libraries before or a new one
+	 */
+	public static synchronized StandardJavaFileManager getFileManager(String key, Iterable<String> libraries) throws IOException {
+		String fingerprint = getFingerprint(libraries);
+		Entry entry = fileManagers.get(key);
+		if (entry != null && entry.fingerprint.equals(fingerprint)) {
+			return entry.fileManager;
+		}
+		if (entry != null) {
+			entry.fileManager.close();
+		}
+		entry = new Entry(getCompiler().getStandardFileManager(null, null, null), fingerprint);
+		fileManagers.put(key, entry);
+		return entry.fileManager;
+	}
+
+	public static synchronized void close() throws IOException {
+		for (Entry entry : fileManagers.values()) {
+			entry.fileManager.close();
+		}
+		fileManagers.clear();
+	}
+
+	private static String getFingerprint(Iterable<String> libraries) {
+		StringBuilder sb = new StringBuilder();
+		for (String library : libraries) {
+			File file = new File(library);
+			sb.append(file.getAbsolutePath()).append(':').append(file.length()).append(':').append(file.lastModified()).append(File.pathSeparatorChar);
+		}
+		return sb.toString();
+	}
+
+	private static class Entry {
+		private final StandardJavaFileManager fileManager;
+		private final String fingerprint;
+
+		private Entry(StandardJavaFileManager fileManager, String fingerprint) {
+			this.fileManager = fileManager;
+			this.fingerprint = fingerprint;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package org.mcphackers.mcp.tools.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.ForwardingJavaFileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+
+import org.mcphackers.mcp.tools.Util;
+import org.mcphackers.mcp.tools.WorkPool;
+
+/**
+ * Records which classes javac writes for each source file. Compiled classes are kept in memory
+ * and hashed as they are produced, while writing them to disk is left to the work pool.
+ */
+public class OutputTracker extends ForwardingJavaFileManager<StandardJavaFileManager> {
+
+	private final Map<File, Set<String>> outputs = new ConcurrentHashMap<>();
+	private final Map<String, byte[]> classes = new ConcurrentHashMap<>();
+	private final Map<String, String> hashes = new ConcurrentHashMap<>();
+	private final List<Future<?>> writes = new CopyOnWriteArrayList<>();
+
+	public OutputTracker(StandardJavaFileManager fileManager) {
+		super(fileManager);
+	}
+
+	@Override
+	public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+		JavaFileObject file = super.getJavaFileForOutput(location, className, kind, sibling);
+		if (kind != JavaFileObject.Kind.CLASS) {
+			return file;
+		}
+		String name = className.replace('.', '/');
+		if (sibling != null && "file".equals(sibling.toUri().getScheme())) {
+			outputs.computeIfAbsent(new File(sibling.toUri()).getAbsoluteFile(), k -> new TreeSet<>()).add(name);
+		}
+		if (!"file".equals(file.toUri().getScheme())) {
+			return file;
+		}
+		Path path = Paths.get(file.toUri());
+		return new ForwardingJavaFileObject<JavaFileObject>(file) {
+			@Override
+			public OutputStream openOutputStream() {
+				return new ByteArrayOutputStream() {
+					private boolean closed;
+
+					@Override
+					public void close() throws IOException {
+						if (closed) {
+							return;
+						}
+						closed = true;
+						byte[] bytes = toByteArray();
+						classes.put(name, bytes);
+						hashes.put(name, Util.getMD5(bytes));
+						writes.add(WorkPool.get().submit(() -> {
+							Files.createDirectories(path.getParent());
+							Files.write(path, bytes);
+							return null;
+						}));
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Waits until all compiled classes are written to disk
+	 */
+	public void awaitWrites() throws IOException {
+		try {
+			for (Future<?> write : writes) {
+				write.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * @return internal names of classes compiled from the source
+	 */
+	public Set<String> getOutputs(File source) {
+		Set<String> classes = outputs.get(source.getAbsoluteFile());
+		return classes == null ? new TreeSet<>() : classes;
+	}
+
+	/**
+	 * @return bytes of compiled classes by internal name
+	 */
+	public Map<String, byte[]> getClasses() {
+		return classes;
+	}
+
+	/**
+	 * @return MD5 hashes of compiled classes by internal name
+	 */
+	public Map<String, String> getHashes() {
+		return hashes;
+	}
+}
@@ -0,0 +1,413 @@
+package org.mcphackers.mcp.tools.constants;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+
+/**
+ * Replaces <code>int</code> constants passed to LWJGL methods with <code>GETSTATIC</code> of the matching constant
+ * fields, so that the decompiler emits their names. The instruction which pushed each stack word is tracked
+ * through the method. Where paths with different pushes meet, the word is no longer replaced.
+ */
+final class BytecodeConstants {
+
+	private static final byte[] LWJGL = "org/lwjgl/".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] KEY_BINDING = "KeyBinding".getBytes(StandardCharsets.UTF_8);
+	private static final String OPENGL = "org/lwjgl/opengl/";
+	private static final String KEYBOARD = "org/lwjgl/input/Keyboard";
+
+	// Words popped and pushed by opcodes with a fixed stack effect, -1 for others
+	private static final int[] POPS = new int[202];
+	private static final int[] PUSHES = new int[202];
+
+	static {
+		Arrays.fill(POPS, -1);
+		Arrays.fill(PUSHES, -1);
+		effect(0, 0, NOP);
+		effect(0, 1, ACONST_NULL, ICONST_M1, ICONST_0, ICONST_1, ICONST_2, ICONST_3, ICONST_4, ICONST_5, FCONST_0, FCONST_1, FCONST_2, BIPUSH, SIPUSH, ILOAD, FLOAD, ALOAD, NEW);
+		effect(0, 2, LCONST_0, LCONST_1, DCONST_0, DCONST_1, LLOAD, DLOAD);
+		effect(2, 1, IALOAD, FALOAD, AALOAD, BALOAD, CALOAD, SALOAD);
+		effect(2, 2, LALOAD, DALOAD);
+		effect(1, 0, ISTORE, FSTORE, ASTORE, POP, IFEQ, IFNE, IFLT, IFGE, IFGT, IFLE, IFNULL, IFNONNULL, TABLESWITCH, LOOKUPSWITCH,
+				IRETURN, FRETURN, ARETURN, ATHROW, MONITORENTER, MONITOREXIT);
+		effect(2, 0, LSTORE, DSTORE, POP2, IF_ICMPEQ, IF_ICMPNE, IF_ICMPLT, IF_ICMPGE, IF_ICMPGT, IF_ICMPLE, IF_ACMPEQ, IF_ACMPNE, LRETURN, DRETURN);
+		effect(3, 0, IASTORE, FASTORE, AASTORE, BASTORE, CASTORE, SASTORE);
+		effect(4, 0, LASTORE, DASTORE);
+		effect(2, 1, IADD, FADD, ISUB, FSUB, IMUL, FMUL, IDIV, FDIV, IREM, FREM, ISHL, ISHR, IUSHR, IAND, IOR, IXOR, FCMPL, FCMPG);
+		effect(4, 2, LADD, DADD, LSUB, DSUB, LMUL, DMUL, LDIV, DDIV, LREM, DREM, LAND, LOR, LXOR);
+		effect(3, 2, LSHL, LSHR, LUSHR);
+		effect(4, 1, LCMP, DCMPL, DCMPG);
+		effect(1, 1, INEG, FNEG, I2F, F2I, I2B, I2C, I2S, NEWARRAY, ANEWARRAY, ARRAYLENGTH, CHECKCAST, INSTANCEOF);
+		effect(2, 2, LNEG, DNEG, L2D, D2L);
+		effect(1, 2, I2L, I2D, F2L, F2D);
+		effect(2, 1, L2I, L2F, D2I, D2F);
+		effect(0, 0, IINC, GOTO, RETURN);
+	}
+
+	private BytecodeConstants() {
+	}
+
+	private static void effect(int pops, int pushes, int... opcodes) {
+		for (int opcode : opcodes) {
+			POPS[opcode] = pops;
+			PUSHES[opcode] = pushes;
+		}
+	}
+
+	static byte[] replace(byte[] bytecode, GLConstants constants) {
+		if (indexOf(bytecode, LWJGL) < 0 && indexOf(bytecode, KEY_BINDING) < 0) {
+			return bytecode;
+		}
+		ClassReader reader = new ClassReader(bytecode);
+		ClassNode node = new ClassNode();
+		reader.accept(node, 0);
+		boolean changed = false;
+		for (MethodNode method : node.methods) {
+			changed |= replace(method, constants);
+		}
+		if (!changed) {
+			return bytecode;
+		}
+		ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		node.accept(writer);
+		return writer.toByteArray();
+	}
+
+	private static boolean replace(MethodNode method, GLConstants constants) {
+		Map<AbstractInsnNode, String> replacements = new HashMap<>();
+		Set<AbstractInsnNode> conflicts = new HashSet<>();
+		Map<LabelNode, AbstractInsnNode[]> jumps = new HashMap<>();
+		Set<LabelNode> handlers = new HashSet<>();
+		for (TryCatchBlockNode tryCatch : method.tryCatchBlocks) {
+			handlers.add(tryCatch.handler);
+		}
+		List<AbstractInsnNode> stack = new ArrayList<>();
+		boolean reachable = true;
+		for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+			if (insn instanceof LabelNode) {
+				AbstractInsnNode[] incoming = jumps.get(insn);
+				if (handlers.contains(insn)) {
+					stack.clear();
+					stack.add(null);
+				} else if (incoming != null && reachable) {
+					if (!merge(stack, incoming)) {
+						return false;
+					}
+				} else if (incoming != null) {
+					stack = new ArrayList<>(Arrays.asList(incoming));
+				} else if (!reachable) {
+					// Only reached by backward jumps, where the stack is empty in compiled code
+					stack.clear();
+				}
+				reachable = true;
+				continue;
+			}
+			int opcode = insn.getOpcode();
+			if (opcode < 0 || !reachable) {
+				continue;
+			}
+			if (opcode == JSR || opcode == RET) {
+				return false;
+			}
+			if (insn instanceof MethodInsnNode) {
+				MethodInsnNode call = (MethodInsnNode)insn;
+				Type[] args = Type.getArgumentTypes(call.desc);
+				int offset = 0;
+				for (int i = args.length - 1; i >= 0; i--) {
+					if (args[i] == Type.INT_TYPE && stack.size() > offset) {
+						AbstractInsnNode producer = stack.get(stack.size() - 1 - offset);
+						String value = getLiteral(producer);
+						String replacement = value == null ? null : getReplacement(call, i, value, constants);
+						if (replacement != null) {
+							addReplacement(replacements, conflicts, producer, replacement);
+						}
+					}
+					offset += args[i].getSize();
+				}
+			} else if ((opcode == IF_ICMPEQ || opcode == IF_ICMPNE) && stack.size() >= 2) {
+				AbstractInsnNode first = stack.get(stack.size() - 2);
+				AbstractInsnNode second = stack.get(stack.size() - 1);
+				AbstractInsnNode literal = null;
+				if (isEventKey(first)) {
+					literal = second;
+				} else if (isEventKey(second)) {
+					literal = first;
+				}
+				String value = getLiteral(literal);
+				String replacement = value == null ? null : constants.getKeyConstant(value);
+				if (replacement != null) {
+					addReplacement(replacements, conflicts, literal, replacement);
+				}
+			}
+			if (!execute(insn, stack)) {
+				return false;
+			}
+			if (insn instanceof JumpInsnNode) {
+				if (!addJump(jumps, ((JumpInsnNode)insn).label, stack)) {
+					return false;
+				}
+				reachable = opcode != GOTO;
+			} else if (insn instanceof TableSwitchInsnNode || insn instanceof LookupSwitchInsnNode) {
+				List<LabelNode> labels = new ArrayList<>();
+				if (insn instanceof TableSwitchInsnNode) {
+					labels.add(((TableSwitchInsnNode)insn).dflt);
+					labels.addAll(((TableSwitchInsnNode)insn).labels);
+				} else {
+					labels.add(((LookupSwitchInsnNode)insn).dflt);
+					labels.addAll(((LookupSwitchInsnNode)insn).labels);
+				}
+				for (LabelNode label : labels) {
+					if (!addJump(jumps, label, stack)) {
+						return false;
+					}
+				}
+				reachable = false;
+			} else if (opcode >= IRETURN && opcode <= RETURN || opcode == ATHROW) {
+				reachable = false;
+			}
+		}
+		boolean changed = false;
+		for (Map.Entry<AbstractInsnNode, String> entry : replacements.entrySet()) {
+			if (conflicts.contains(entry.getKey())) {
+				continue;
+			}
+			InsnList fields = getFields(entry.getValue());
+			if (fields != null) {
+				method.instructions.insert(entry.getKey(), fields);
+				method.instructions.remove(entry.getKey());
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private static String getReplacement(MethodInsnNode call, int arg, String value, GLConstants constants) {
+		if (call.getOpcode() == INVOKESTATIC && call.owner.startsWith(OPENGL)) {
+			return constants.getCallConstant(call.owner.substring(OPENGL.length()), call.name, value);
+		}
+		if (call.getOpcode() == INVOKESTATIC && call.owner.equals(KEYBOARD) && (call.name.equals("isKeyDown") || call.name.equals("getKeyName"))) {
+			return constants.getKeyConstant(value);
+		}
+		if (call.getOpcode() == INVOKESPECIAL && call.name.equals("<init>") && call.desc.equals("(Ljava/lang/String;I)V") && arg == 1
+				&& call.owner.substring(call.owner.lastIndexOf('/') + 1).equals("KeyBinding")) {
+			return constants.getKeyConstant(value);
+		}
+		return null;
+	}
+
+	private static void addReplacement(Map<AbstractInsnNode, String> replacements, Set<AbstractInsnNode> conflicts, AbstractInsnNode literal, String replacement) {
+		String previous = replacements.put(literal, replacement);
+		if (previous != null && !previous.equals(replacement)) {
+			conflicts.add(literal);
+		}
+	}
+
+	private static boolean isEventKey(AbstractInsnNode insn) {
+		if (insn instanceof MethodInsnNode) {
+			MethodInsnNode call = (MethodInsnNode)insn;
+			return call.owner.equals(KEYBOARD) && call.name.equals("getEventKey") && call.desc.equals("()I");
+		}
+		return false;
+	}
+
+	/**
+	 * @return decimal value of a non-negative <code>int</code> constant pushed by the instruction or null
+	 */
+	private static String getLiteral(AbstractInsnNode insn) {
+		if (insn == null) {
+			return null;
+		}
+		int opcode = insn.getOpcode();
+		Integer value = null;
+		if (opcode >= ICONST_0 && opcode <= ICONST_5) {
+			value = opcode - ICONST_0;
+		} else if (opcode == BIPUSH || opcode == SIPUSH) {
+			value = ((IntInsnNode)insn).operand;
+		} else if (opcode == LDC && ((LdcInsnNode)insn).cst instanceof Integer) {
+			value = (Integer)((LdcInsnNode)insn).cst;
+		}
+		return value == null || value < 0 ? null : value.toString();
+	}
+
+	/**
+	 * @return instructions loading the fields of an expression such as <code>GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT</code>
+	 */
+	private static InsnList getFields(String expression) {
+		InsnList list = new InsnList();
+		String[] parts = expression.split(" \\| ");
+		for (int i = 0; i < parts.length; i++) {
+			int dot = parts[i].indexOf('.');
+			String owner = dot < 0 ? null : parts[i].substring(0, dot);
+			String name = dot < 0 ? null : parts[i].substring(dot + 1);
+			if (!isIdentifier(owner) || !isIdentifier(name)) {
+				return null;
+			}
+			list.add(new FieldInsnNode(GETSTATIC, owner.equals("Keyboard") ? KEYBOARD : OPENGL + owner, name, "I"));
+			if (i > 0) {
+				list.add(new InsnNode(IOR));
+			}
+		}
+		return list;
+	}
+
+	private static boolean isIdentifier(String name) {
+		if (name == null || name.isEmpty() || !Character.isJavaIdentifierStart(name.charAt(0))) {
+			return false;
+		}
+		for (int i = 1; i < name.length(); i++) {
+			if (!Character.isJavaIdentifierPart(name.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean addJump(Map<LabelNode, AbstractInsnNode[]> jumps, LabelNode label, List<AbstractInsnNode> stack) {
+		AbstractInsnNode[] previous = jumps.get(label);
+		if (previous == null) {
+			jumps.put(label, stack.toArray(new AbstractInsnNode[0]));
+			return true;
+		}
+		List<AbstractInsnNode> merged = new ArrayList<>(Arrays.asList(previous));
+		if (!merge(merged, stack.toArray(new AbstractInsnNode[0]))) {
+			return false;
+		}
+		jumps.put(label, merged.toArray(new AbstractInsnNode[0]));
+		return true;
+	}
+
+	private static boolean merge(List<AbstractInsnNode> stack, AbstractInsnNode[] other) {
+		if (stack.size() != other.length) {
+			return false;
+		}
+		for (int i = 0; i < other.length; i++) {
+			if (stack.get(i) != other[i]) {
+				stack.set(i, null);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Applies the stack effect of an instruction. Each pushed word is recorded with the instruction which pushed it.
+	 * @return false if the stack underflows
+	 */
+	private static boolean execute(AbstractInsnNode insn, List<AbstractInsnNode> stack) {
+		int opcode = insn.getOpcode();
+		int pops;
+		int pushes;
+		if (opcode == LDC) {
+			Object cst = ((LdcInsnNode)insn).cst;
+			pops = 0;
+			pushes = cst instanceof Long || cst instanceof Double ? 2 : 1;
+		} else if (insn instanceof FieldInsnNode) {
+			int size = Type.getType(((FieldInsnNode)insn).desc).getSize();
+			pops = opcode == GETSTATIC ? 0 : opcode == PUTSTATIC ? size : opcode == GETFIELD ? 1 : size + 1;
+			pushes = opcode == GETSTATIC || opcode == GETFIELD ? size : 0;
+		} else if (insn instanceof MethodInsnNode || insn instanceof InvokeDynamicInsnNode) {
+			String desc = insn instanceof MethodInsnNode ? ((MethodInsnNode)insn).desc : ((InvokeDynamicInsnNode)insn).desc;
+			int sizes = Type.getArgumentsAndReturnSizes(desc);
+			pops = (sizes >> 2) - (opcode == INVOKESTATIC || opcode == INVOKEDYNAMIC ? 1 : 0);
+			pushes = sizes & 3;
+		} else if (insn instanceof MultiANewArrayInsnNode) {
+			pops = ((MultiANewArrayInsnNode)insn).dims;
+			pushes = 1;
+		} else if (opcode >= DUP && opcode <= SWAP) {
+			return shuffle(opcode, stack);
+		} else if (insn instanceof IincInsnNode || opcode < POPS.length && POPS[opcode] >= 0) {
+			pops = POPS[opcode];
+			pushes = PUSHES[opcode];
+		} else {
+			return false;
+		}
+		if (stack.size() < pops) {
+			return false;
+		}
+		for (int i = 0; i < pops; i++) {
+			stack.remove(stack.size() - 1);
+		}
+		for (int i = 0; i < pushes; i++) {
+			stack.add(insn);
+		}
+		return true;
+	}
+
+	private static boolean shuffle(int opcode, List<AbstractInsnNode> stack) {
+		int size = stack.size();
+		int words = opcode == DUP || opcode == SWAP ? 1 : opcode == DUP_X1 || opcode == DUP2 ? 2 : opcode == DUP_X2 || opcode == DUP2_X1 ? 3 : 4;
+		if (size < Math.max(words, opcode == SWAP ? 2 : 0)) {
+			return false;
+		}
+		AbstractInsnNode a = stack.get(size - 1);
+		AbstractInsnNode b = size >= 2 ? stack.get(size - 2) : null;
+		switch (opcode) {
+			case DUP:
+				stack.add(a);
+				break;
+			case DUP_X1:
+				stack.add(size - 2, a);
+				break;
+			case DUP_X2:
+				stack.add(size - 3, a);
+				break;
+			case DUP2:
+				stack.add(b);
+				stack.add(a);
+				break;
+			case DUP2_X1:
+				stack.add(size - 3, b);
+				stack.add(size - 2, a);
+				break;
+			case DUP2_X2:
+				stack.add(size - 4, b);
+				stack.add(size - 3, a);
+				break;
+			case SWAP:
+				stack.set(size - 1, b);
+				stack.set(size - 2, a);
+				break;
+		}
+		return true;
+	}
+
+	private static int indexOf(byte[] array, byte[] target) {
+		outer:
+		for (int i = 0; i <= array.length - target.length; i++) {
+			for (int j = 0; j < target.length; j++) {
+				if (array[i + j] != target[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+}
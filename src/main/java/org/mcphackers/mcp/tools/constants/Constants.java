@@ -1,47 +1,306 @@
 package org.mcphackers.mcp.tools.constants;
 
-import java.io.IOException;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Stack;
-import java.util.function.Function;
-import java.util.regex.MatchResult;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public abstract class Constants {
-	
-	public void replace(Path src) throws IOException {
-		Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
-			@Override
-			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
-				String code = new String(Files.readAllBytes(file));
-				code = replace_constants(code);
-				Files.write(file, code.getBytes());
-				return FileVisitResult.CONTINUE;
+
+	private static final int GROUP = 0;
+	private static final int BRACKET = 1;
+	private static final int CALL = 2;
+	private static final int CONSTRUCTOR = 3;
+	private static final int FRAME_SIZE = 6;
+	private static final int HISTORY = 8;
+
+	public String replace_constants(String code) {
+		return replace(code, this);
+	}
+
+	/**
+	 * @return true if the code may contain literals replaced by this instance
+	 */
+	protected boolean accepts(String code) {
+		return true;
+	}
+
+	/**
+	 * @return replacement of the literal or null if it stays unchanged
+	 */
+	protected abstract String replaceLiteral(Literal literal);
+
+	/**
+	 * Replaces numeric literals in a single pass over the code. The first of the given instances
+	 * which returns a replacement for a literal wins.
+	 * <p>
+	 * Results match the regular expressions of previous versions, except that arguments of a call end
+	 * at its own closing parenthesis: literals of nested calls and array indexes aren't taken as arguments
+	 * of the outer call, and arguments after a nested call are replaced too. Literals in strings and
+	 * comments stay unchanged. See ConstantsTest.
+	 */
+	public static String replace(String code, Constants... constants) {
+		Constants[] active = new Constants[constants.length];
+		int count = 0;
+		for (Constants c : constants) {
+			if (c != null && c.accepts(code)) {
+				active[count++] = c;
+			}
+		}
+		if (count == 0) {
+			return code;
+		}
+		JavaLexer lexer = new JavaLexer(code);
+		Literal literal = new Literal(code);
+		StringBuilder out = null;
+		int copied = 0;
+		int[] frames = new int[FRAME_SIZE * 16];
+		int depth = 0;
+		// Types and offsets of the most recent tokens, used to find call sites
+		int[] types = new int[HISTORY];
+		int[] starts = new int[HISTORY];
+		int[] ends = new int[HISTORY];
+		int tokens = 0;
+		boolean inImport = false;
+		int importPos = -1;
+		int type;
+		while ((type = lexer.next()) != JavaLexer.EOF) {
+			int start = lexer.start;
+			int end = lexer.end;
+			if (type == JavaLexer.NUMBER) {
+				boolean negative = lexer.charAt(start - 1) == '-';
+				literal.reset(negative ? start - 1 : start, end, negative);
+				int frame = depth - 1;
+				while (frame >= 0 && frames[frame * FRAME_SIZE] == GROUP) {
+					frame--;
+				}
+				if (frame >= 0 && frames[frame * FRAME_SIZE] != BRACKET) {
+					int i = frame * FRAME_SIZE;
+					literal.setCall(frames[i] == CONSTRUCTOR, frames[i + 1], frames[i + 2], frames[i + 3], frames[i + 4], frames[i + 5]);
+				}
+				if (tokens >= 7
+						&& isSymbol(code, types, starts, tokens - 1, '=') && isSymbol(code, types, starts, tokens - 2, '=')
+						&& isSymbol(code, types, starts, tokens - 3, ')') && isSymbol(code, types, starts, tokens - 4, '(')
+						&& isSymbol(code, types, starts, tokens - 6, '.')
+						&& types[(tokens - 5) % HISTORY] == JavaLexer.IDENTIFIER && types[(tokens - 7) % HISTORY] == JavaLexer.IDENTIFIER) {
+					literal.setComparison(starts[(tokens - 7) % HISTORY], ends[(tokens - 7) % HISTORY], starts[(tokens - 5) % HISTORY], ends[(tokens - 5) % HISTORY]);
+				}
+				String replacement = null;
+				for (int i = 0; i < count && replacement == null; i++) {
+					replacement = active[i].replaceLiteral(literal);
+				}
+				if (replacement != null) {
+					if (out == null) {
+						out = new StringBuilder(code.length() + 256);
+					}
+					out.append(code, copied, literal.start).append(replacement);
+					copied = end;
+				}
+			} else if (type == JavaLexer.IDENTIFIER) {
+				if (depth == 0 && code.startsWith("import", start) && end - start == 6) {
+					inImport = true;
+				} else if (inImport && isIdentifier(code, types, starts, ends, tokens - 1, "import") && code.startsWith("static", start) && end - start == 6) {
+					inImport = false;
+				}
+			} else if (type == JavaLexer.SYMBOL) {
+				char c = code.charAt(start);
+				if (c == '(' || c == '[' || c == '{') {
+					if (depth * FRAME_SIZE == frames.length) {
+						frames = Arrays.copyOf(frames, frames.length * 2);
+					}
+					int i = depth++ * FRAME_SIZE;
+					Arrays.fill(frames, i, i + FRAME_SIZE, -1);
+					frames[i] = c == '(' ? GROUP : BRACKET;
+					frames[i + 5] = end;
+					if (c == '(' && tokens >= 1 && types[(tokens - 1) % HISTORY] == JavaLexer.IDENTIFIER) {
+						int name = (tokens - 1) % HISTORY;
+						frames[i] = CALL;
+						frames[i + 3] = starts[name];
+						frames[i + 4] = ends[name];
+						if (tokens >= 3 && isSymbol(code, types, starts, tokens - 2, '.') && types[(tokens - 3) % HISTORY] == JavaLexer.IDENTIFIER) {
+							frames[i + 1] = starts[(tokens - 3) % HISTORY];
+							frames[i + 2] = ends[(tokens - 3) % HISTORY];
+						} else if (tokens >= 2 && isIdentifier(code, types, starts, ends, tokens - 2, "new")) {
+							frames[i] = CONSTRUCTOR;
+						}
+					}
+				} else if (c == ')' || c == ']' || c == '}') {
+					if (depth > 0) {
+						depth--;
+					}
+				} else if (c == ';' && inImport) {
+					inImport = false;
+					importPos = end + (out == null ? 0 : out.length() - copied);
+				}
+			}
+			types[tokens % HISTORY] = type;
+			starts[tokens % HISTORY] = start;
+			ends[tokens % HISTORY] = end;
+			tokens++;
+		}
+		if (out == null) {
+			return code;
+		}
+		out.append(code, copied, code.length());
+		if (importPos >= 0 && !literal.imports.isEmpty()) {
+			// Previous versions collected imports in a hash set, first ones and then the others from the end of the file.
+			// Imports in the same bucket keep their insertion order, so they are inserted in that order again
+			List<Map.Entry<String, Integer>> added = new ArrayList<>(literal.imports.entrySet());
+			added.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+			Set<String> importSet = new HashSet<>();
+			for (Map.Entry<String, Integer> imp : added) {
+				importSet.add(imp.getKey());
 			}
-		});
+			StringBuilder imports = new StringBuilder();
+			for (String imp : importSet) {
+				String impString = "import " + imp + ";";
+				if (!code.contains(impString)) {
+					imports.append(System.lineSeparator()).append(impString);
+				}
+			}
+			out.insert(importPos, imports);
+		}
+		return out.toString();
+	}
+
+	private static boolean isSymbol(String code, int[] types, int[] starts, int token, char c) {
+		return types[token % HISTORY] == JavaLexer.SYMBOL && code.charAt(starts[token % HISTORY]) == c;
+	}
+
+	private static boolean isIdentifier(String code, int[] types, int[] starts, int[] ends, int token, String name) {
+		int i = token % HISTORY;
+		return token >= 0 && types[i] == JavaLexer.IDENTIFIER && ends[i] - starts[i] == name.length() && code.startsWith(name, starts[i]);
 	}
-	
-	protected abstract String replace_constants(String code);
 
-	public String replaceTextOfMatchGroup(String sourceString, Pattern pattern, Function<MatchResult,String> replaceStrategy) {
-		Stack<MatchResult> startPositions = new Stack<>();
-		Matcher matcher = pattern.matcher(sourceString);
+	/**
+	 * A numeric literal and the call it is an argument of. Strings are only created when they're requested.
+	 */
+	public static final class Literal {
+		private final String code;
+		// Last position an import was added at
+		private final Map<String, Integer> imports = new HashMap<>();
+		private int start;
+		private int end;
+		private boolean negative;
+		private boolean constructor;
+		private int ownerStart;
+		private int ownerEnd;
+		private int methodStart;
+		private int methodEnd;
+		private int argumentsStart;
+		private int comparedOwnerStart;
+		private int comparedOwnerEnd;
+		private int comparedMethodStart;
+		private int comparedMethodEnd;
+
+		private Literal(String code) {
+			this.code = code;
+		}
+
+		private void reset(int start, int end, boolean negative) {
+			this.start = start;
+			this.end = end;
+			this.negative = negative;
+			constructor = false;
+			ownerStart = ownerEnd = methodStart = methodEnd = -1;
+			comparedOwnerStart = comparedOwnerEnd = comparedMethodStart = comparedMethodEnd = -1;
+		}
+
+		private void setCall(boolean constructor, int ownerStart, int ownerEnd, int methodStart, int methodEnd, int argumentsStart) {
+			this.constructor = constructor;
+			this.ownerStart = ownerStart;
+			this.ownerEnd = ownerEnd;
+			this.methodStart = methodStart;
+			this.methodEnd = methodEnd;
+			this.argumentsStart = argumentsStart;
+		}
 
-		while (matcher.find()) {
-			startPositions.push(matcher.toMatchResult());
+		private void setComparison(int ownerStart, int ownerEnd, int methodStart, int methodEnd) {
+			comparedOwnerStart = ownerStart;
+			comparedOwnerEnd = ownerEnd;
+			comparedMethodStart = methodStart;
+			comparedMethodEnd = methodEnd;
 		}
-		StringBuilder sb = new StringBuilder(sourceString);
-		while (! startPositions.isEmpty()) {
-			MatchResult match = startPositions.pop();
-			if (match.start() >= 0 && match.end() >= 0) {
-				sb.replace(match.start(), match.end(), replaceStrategy.apply(match));
+
+		/**
+		 * @return text of the literal, including a minus sign directly in front of it
+		 */
+		public String getText() {
+			return code.substring(start, end);
+		}
+
+		public boolean isNegative() {
+			return negative;
+		}
+
+		/**
+		 * @return true if the literal is a decimal <code>int</code> without sign
+		 */
+		public boolean isPlainInteger() {
+			if (negative) {
+				return false;
+			}
+			for (int i = start; i < end; i++) {
+				char c = code.charAt(i);
+				if (c < '0' || c > '9') {
+					return false;
+				}
 			}
+			return true;
+		}
+
+		/**
+		 * @return qualifier of the enclosing method call or null
+		 */
+		public String getOwner() {
+			return ownerStart < 0 ? null : code.substring(ownerStart, ownerEnd);
+		}
+
+		/**
+		 * @return name of the enclosing method call or constructed class, or null
+		 */
+		public String getMethod() {
+			return methodStart < 0 ? null : code.substring(methodStart, methodEnd);
+		}
+
+		public boolean isConstructor() {
+			return constructor;
+		}
+
+		/**
+		 * @return code of the arguments of the enclosing call in front of the literal
+		 */
+		public String getPrecedingArguments() {
+			return methodStart < 0 ? null : code.substring(argumentsStart, start);
+		}
+
+		public boolean isCall(String owner, String method) {
+			return !constructor && matches(owner, ownerStart, ownerEnd) && matches(method, methodStart, methodEnd);
+		}
+
+		/**
+		 * @return true if the literal is compared to the result of <code>owner.method()</code>
+		 */
+		public boolean isComparedTo(String owner, String method) {
+			return matches(owner, comparedOwnerStart, comparedOwnerEnd) && matches(method, comparedMethodStart, comparedMethodEnd);
+		}
+
+		public void addImport(String imp) {
+			imports.merge(imp, start, Math::max);
+		}
+
+		/**
+		 * Adds an import which is inserted before those of {@link #addImport(String)}
+		 */
+		public void addFirstImport(String imp) {
+			imports.put(imp, Integer.MAX_VALUE);
+		}
+
+		private boolean matches(String name, int start, int end) {
+			return start >= 0 && end - start == name.length() && code.startsWith(name, start);
 		}
-		return sb.toString();	   
 	}
 }
@@ -1,97 +1,178 @@
 package org.mcphackers.mcp.tools.constants;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.mcphackers.mcp.tools.Util;
 
 public class GLConstants extends Constants {
-	
-	private static final JSONObject json = getJson();
-	private static Exception cause = null;
-	
-	private static final List _PACKAGES = json == null ? new ArrayList() : json.getJSONArray("PACKAGES").toList();
-	private static final List _CONSTANTS = json == null ? new ArrayList() : Util.jsonToList(json.getJSONArray("CONSTANTS"));
-	private static final Map _CONSTANTS_KEYBOARD = json == null ? new HashMap() : Util.jsonToMap(json.getJSONObject("CONSTANTS_KEYBOARD"));
-	private static final Pattern _CALL_REGEX = Pattern.compile("(" + String.join("|", _PACKAGES) + ")\\.([\\w]+)\\(.+?\\)");
-	private static final Pattern _CONSTANT_REGEX = Pattern.compile("(?<![-.\\w])\\d+(?![.\\w])");
-	private static final Pattern _INPUT_REGEX = Pattern.compile("((Keyboard)\\.((getKeyName|isKeyDown)\\(.+?\\)|getEventKey\\(\\) == .+?(?=[\\);]))|new KeyBinding\\([ \\w\\\"]+, .+?\\))");
-	private static final Pattern _IMPORT = Pattern.compile("import [.*\\w]+;");
-	
+
+	private static final String KEYBOARD = "Keyboard";
+
+	private final Index index;
+
 	public GLConstants() throws Exception {
-		if (cause != null) {
-			throw new Exception("Could not initialize constants", cause);
+		if (IndexHolder.cause != null) {
+			throw new Exception("Could not initialize constants", IndexHolder.cause);
 		}
+		index = IndexHolder.INDEX;
 	}
-	
-	private String updateImport(String code, String imp) {
-		Matcher matcher = _IMPORT.matcher(code);
-		int lastIndex = -1;
-		while (matcher.find()) {
-			lastIndex = matcher.end();
+
+	@Override
+	protected boolean accepts(String code) {
+		if (code.contains(KEYBOARD + ".") || code.contains("new KeyBinding(")) {
+			return true;
 		}
-		String impString = "import " + imp + ";";
-		if(lastIndex >= 0 && !code.contains(impString)) {
-			code = code.substring(0, lastIndex) + System.lineSeparator() + impString + code.substring(lastIndex);
+		for (String pkg : index.packages) {
+			if (code.contains(pkg + ".")) {
+				return true;
+			}
 		}
-		return code;
+		return false;
 	}
 
-	protected String replace_constants(String code) {
-		Set<String> imports = new HashSet<String>();
-		code = replaceTextOfMatchGroup(code, _INPUT_REGEX, match1 -> {
-			String full_call = match1.group(0);
-			return replaceTextOfMatchGroup(full_call, _CONSTANT_REGEX, match2 -> {
-				String replaceConst = (String)_CONSTANTS_KEYBOARD.get(match2.group(0));
-				if(replaceConst == null) {
-					return match2.group();
-				}
-				imports.add("org.lwjgl.input.Keyboard");
-				return "Keyboard." + replaceConst;
-			});
-		});
-		code = replaceTextOfMatchGroup(code, _CALL_REGEX, match1 -> {
-			String full_call = match1.group(0);
-			String pkg = match1.group(1);
-			String method = match1.group(2);
-			return replaceTextOfMatchGroup(full_call, _CONSTANT_REGEX, match2 -> {
-				String full_match = match2.group(0);
-				for (Object groupg : _CONSTANTS) {
-					List group = (List)groupg;
-					if (((Map<String, List>)group.get(0)).containsKey(pkg) && ((List<Map<String, List>>)group).get(0).get(pkg).contains(method)) {
-						for (Entry entry : ((Map<String, List<String>>)group.get(1)).entrySet()) {
-							if(((Map)entry.getValue()).containsKey(full_match)) {
-								imports.add("org.lwjgl.opengl." + entry.getKey());
-								return String.format("%s.%s", entry.getKey(), ((Map)entry.getValue()).get(full_match));
+	@Override
+	protected String replaceLiteral(Literal literal) {
+		if (!literal.isPlainInteger()) {
+			return null;
+		}
+		String constant = literal.getText();
+		if (literal.isCall(KEYBOARD, "getKeyName") || literal.isCall(KEYBOARD, "isKeyDown")
+				|| literal.isConstructor() && "KeyBinding".equals(literal.getMethod()) && isKeyBindingCode(literal.getPrecedingArguments())
+				|| literal.isComparedTo(KEYBOARD, "getEventKey")) {
+			String replaceConst = getKeyConstant(constant);
+			if (replaceConst == null) {
+				return null;
+			}
+			literal.addFirstImport("org.lwjgl.input.Keyboard");
+			return replaceConst;
+		}
+		String pkg = literal.getOwner();
+		if (literal.isConstructor() || pkg == null) {
+			return null;
+		}
+		Replacement replacement = getReplacement(pkg, literal.getMethod(), constant);
+		if (replacement == null) {
+			return null;
+		}
+		literal.addImport("org.lwjgl.opengl." + replacement.owner);
+		return replacement.text;
+	}
+
+	/**
+	 * Replaces literals passed to LWJGL methods in bytecode with references to the constant fields
+	 * @return transformed bytecode or the given array if nothing was replaced
+	 */
+	public byte[] replaceConstants(byte[] bytecode) {
+		return BytecodeConstants.replace(bytecode, this);
+	}
+
+	/**
+	 * @return replacement of a literal passed to a method of an LWJGL OpenGL class, such as <code>GL11.GL_BLEND</code>
+	 */
+	String getCallConstant(String pkg, String method, String constant) {
+		Replacement replacement = getReplacement(pkg, method, constant);
+		return replacement == null ? null : replacement.text;
+	}
+
+	/**
+	 * @return replacement of a key code, such as <code>Keyboard.KEY_W</code>
+	 */
+	String getKeyConstant(String constant) {
+		String replaceConst = index.keyboard.get(constant);
+		return replaceConst == null ? null : KEYBOARD + "." + replaceConst;
+	}
+
+	private Replacement getReplacement(String pkg, String method, String constant) {
+		if (!index.packages.contains(pkg)) {
+			return null;
+		}
+		Map<String, Replacement> calls = index.calls.get(pkg + "." + method);
+		return calls == null ? null : calls.get(constant);
+	}
+
+	private static boolean isKeyBindingCode(String arguments) {
+		// Only names made of words and spaces, such as "Forward", are matched
+		int index = arguments.indexOf(", ");
+		if (index <= 0) {
+			return false;
+		}
+		for (int i = 0; i < index; i++) {
+			char c = arguments.charAt(i);
+			if (c != ' ' && c != '"' && c != '_' && !Character.isLetterOrDigit(c)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Loaded on first use, so that sides without LWJGL never parse the rules
+	 */
+	private static class IndexHolder {
+		private static Exception cause;
+		private static final Index INDEX = load();
+
+		private static Index load() {
+			try {
+				JSONObject json = Util.parseJSONFile(GLConstants.class.getClassLoader().getResourceAsStream("gl_constants.json"));
+				return new Index(json);
+			} catch (JSONException | IOException | ClassCastException e) {
+				cause = e;
+			}
+			return null;
+		}
+	}
+
+	private static class Replacement {
+		private final String owner;
+		private final String text;
+
+		private Replacement(String owner, String name) {
+			this.owner = owner;
+			this.text = owner + "." + name;
+		}
+	}
+
+	/**
+	 * Rules of gl_constants.json keyed by call and literal
+	 */
+	private static class Index {
+		private final Set<String> packages = new LinkedHashSet<>();
+		private final Map<String, Map<String, Replacement>> calls = new HashMap<>();
+		private final Map<String, String> keyboard = new HashMap<>();
+
+		@SuppressWarnings("unchecked")
+		private Index(JSONObject json) {
+			for (Object pkg : json.getJSONArray("PACKAGES").toList()) {
+				packages.add((String)pkg);
+			}
+			for (Object groupObj : Util.jsonToList(json.getJSONArray("CONSTANTS"))) {
+				List<Object> group = (List<Object>)groupObj;
+				Map<String, List<Object>> methods = (Map<String, List<Object>>)group.get(0);
+				Map<String, Map<String, Object>> constants = (Map<String, Map<String, Object>>)group.get(1);
+				for (Entry<String, List<Object>> owner : methods.entrySet()) {
+					for (Object method : owner.getValue()) {
+						Map<String, Replacement> call = calls.computeIfAbsent(owner.getKey() + "." + method, k -> new HashMap<>());
+						for (Entry<String, Map<String, Object>> entry : constants.entrySet()) {
+							for (Entry<String, Object> constant : entry.getValue().entrySet()) {
+								// Earlier groups take precedence
+								call.putIfAbsent(constant.getKey(), new Replacement(entry.getKey(), (String)constant.getValue()));
 							}
 						}
 					}
 				}
-				return full_match;
-			});
-		});
-		for(String imp : imports) {
-			code = updateImport(code, imp);
-		}
-		return code;
-	}
-	
-	private static JSONObject getJson() {
-		try {
-			return Util.parseJSONFile(GLConstants.class.getClassLoader().getResourceAsStream("gl_constants.json"));
-		} catch (JSONException | IOException e) {
-			cause = e;
+			}
+			for (Entry<String, Object> entry : Util.jsonToMap(json.getJSONObject("CONSTANTS_KEYBOARD")).entrySet()) {
+				keyboard.put(entry.getKey(), (String)entry.getValue());
+			}
 		}
-		return null;
 	}
 }
@@ -0,0 +1,109 @@
+package org.mcphackers.mcp.tools.constants;
+
+/**
+ * Minimal tokenizer for Java sources. Whitespace and comments are skipped, string and character literals
+ * are returned as single tokens. Tokens are reported as offsets into the source and no strings are created.
+ */
+final class JavaLexer {
+
+	static final int EOF = 0;
+	static final int IDENTIFIER = 1;
+	static final int NUMBER = 2;
+	static final int QUOTED = 3;
+	static final int SYMBOL = 4;
+
+	private final String code;
+	private final int length;
+	private int pos;
+	int start;
+	int end;
+
+	JavaLexer(String code) {
+		this.code = code;
+		this.length = code.length();
+	}
+
+	int next() {
+		skipWhitespaceAndComments();
+		start = pos;
+		if (pos >= length) {
+			end = pos;
+			return EOF;
+		}
+		char c = code.charAt(pos);
+		int type;
+		if (Character.isJavaIdentifierStart(c)) {
+			pos++;
+			while (pos < length && Character.isJavaIdentifierPart(code.charAt(pos))) {
+				pos++;
+			}
+			type = IDENTIFIER;
+		} else if (isDigit(c) || c == '.' && pos + 1 < length && isDigit(code.charAt(pos + 1))) {
+			readNumber();
+			type = NUMBER;
+		} else if (c == '"' || c == '\'') {
+			readQuoted(c);
+			type = QUOTED;
+		} else {
+			pos++;
+			type = SYMBOL;
+		}
+		end = pos;
+		return type;
+	}
+
+	char charAt(int index) {
+		return index >= 0 && index < length ? code.charAt(index) : '\0';
+	}
+
+	private void skipWhitespaceAndComments() {
+		while (pos < length) {
+			char c = code.charAt(pos);
+			if (Character.isWhitespace(c)) {
+				pos++;
+			} else if (c == '/' && pos + 1 < length && code.charAt(pos + 1) == '/') {
+				while (pos < length && code.charAt(pos) != '\n') {
+					pos++;
+				}
+			} else if (c == '/' && pos + 1 < length && code.charAt(pos + 1) == '*') {
+				int close = code.indexOf("*/", pos + 2);
+				pos = close < 0 ? length : close + 2;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void readNumber() {
+		boolean hex = code.charAt(pos) == '0' && (charAt(pos + 1) == 'x' || charAt(pos + 1) == 'X');
+		pos++;
+		while (pos < length) {
+			char c = code.charAt(pos);
+			char prev = code.charAt(pos - 1);
+			if (Character.isLetterOrDigit(c) || c == '_' || c == '.') {
+				pos++;
+			} else if ((c == '+' || c == '-') && (hex ? prev == 'p' || prev == 'P' : prev == 'e' || prev == 'E')) {
+				pos++;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void readQuoted(char quote) {
+		pos++;
+		while (pos < length) {
+			char c = code.charAt(pos++);
+			if (c == '\\') {
+				pos++;
+			} else if (c == quote || c == '\n') {
+				return;
+			}
+		}
+		pos = Math.min(pos, length);
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+}
@@ -2,12 +2,9 @@ package org.mcphackers.mcp.tools.constants;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Pattern;
 
 public class MathConstants extends Constants {
 	
-	// Used to prevent strings from being captured, such as "2.0D"
-	private static final Pattern _CONSTANT_REGEX = Pattern.compile("(?![\\\"\\'][.\\w\\s]*)-*\\d+\\.*\\w*(?![.\\w\\s]*[\\\"\\'])");
 	private static final Map<String, String> _CONSTANTS = new HashMap<String, String>();
 	
 	static {
@@ -39,11 +36,9 @@ public class MathConstants extends Constants {
 		replaceValue(9.0D / 256D, "9.0D / 256D");
 	}
 	
-	protected String replace_constants(String code) {
-		return replaceTextOfMatchGroup(code, _CONSTANT_REGEX, match1 -> {
-			String constant = match1.group(0);
-			return _CONSTANTS.containsKey(constant) ? _CONSTANTS.get(constant) : constant;
-		});
+	@Override
+	protected String replaceLiteral(Literal literal) {
+		return _CONSTANTS.get(literal.getText());
 	}
 	
 	private static String floatCastedToDouble(float value) {
@@ -1,5 +1,8 @@
 package org.mcphackers.mcp.tools.fernflower;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.mcphackers.mcp.ProgressInfo;
 
 import de.fernflower.main.extern.IFernflowerLogger;
@@ -9,6 +12,7 @@ public class DecompileLogger extends IFernflowerLogger {
 	private int numberOfClasses;
 	private int currentClassNumber;
 	private String currentMessage;
+	private final List<DecompileLogger> shards = new ArrayList<>();
 
 	public DecompileLogger() {
 		numberOfClasses = 1;
@@ -17,9 +21,44 @@ public class DecompileLogger extends IFernflowerLogger {
 	}
 
 	public ProgressInfo initInfo() {
+		synchronized (shards) {
+			if(!shards.isEmpty()) {
+				int current = 0;
+				int total = 0;
+				for(DecompileLogger shard : shards) {
+					current += shard.currentClassNumber;
+					total += shard.numberOfClasses;
+				}
+				return new ProgressInfo(currentMessage, current, total);
+			}
+		}
 		return new ProgressInfo(currentMessage, currentClassNumber, numberOfClasses);
 	}
 
+	/**
+	 * Creates a logger for a separate decompiler context which reports its progress through this one
+	 */
+	public DecompileLogger newShard(int classes) {
+		DecompileLogger shard = new DecompileLogger() {
+			@Override
+			public void startReadingClass(String className) {
+				super.startReadingClass(className);
+				DecompileLogger.this.currentMessage = "Decompiling class " + className;
+			}
+		};
+		shard.numberOfClasses = Math.max(classes, 1);
+		synchronized (shards) {
+			shards.add(shard);
+		}
+		return shard;
+	}
+
+	public void clearShards() {
+		synchronized (shards) {
+			shards.clear();
+		}
+	}
+
 	public void writeMessage(String message, Severity severity) {
 	}
 
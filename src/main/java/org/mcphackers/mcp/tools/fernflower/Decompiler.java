@@ -2,36 +2,75 @@ package org.mcphackers.mcp.tools.fernflower;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import org.mcphackers.mcp.MCP;
+import org.mcphackers.mcp.tools.DigestBuilder;
+import org.mcphackers.mcp.tools.FileUtil;
+import org.mcphackers.mcp.tools.Util;
+import org.mcphackers.mcp.tools.WorkPool;
+import org.mcphackers.mcp.tools.ZipArchive;
 
 import de.fernflower.main.decompiler.BaseDecompiler;
 import de.fernflower.main.decompiler.DirectoryResultSaver;
 import de.fernflower.main.decompiler.SingleFileSaver;
 import de.fernflower.main.extern.IBytecodeProvider;
 import de.fernflower.main.extern.IResultSaver;
+import de.fernflower.main.providers.IJavadocProvider;
 import de.fernflower.util.InterpreterUtil;
 
 public class Decompiler implements IBytecodeProvider {
 	public DecompileLogger log;
+	private File memorySource;
+	private Map<String, byte[]> memoryClasses;
+	private UnaryOperator<byte[]> transformer;
+	private final Map<String, byte[]> transformed = new ConcurrentHashMap<>();
 
 	public Decompiler() {
 		this.log = new DecompileLogger();
 	}
 
+	/**
+	 * Serves bytecode of the given jar from memory instead of reading it back from disk
+	 */
+	public void setClasses(String source, Map<String, byte[]> classes) {
+		memorySource = classes == null ? null : new File(source).getAbsoluteFile();
+		memoryClasses = classes;
+	}
+
+	/**
+	 * Transforms bytecode of every class before it is decompiled
+	 */
+	public void setTransformer(UnaryOperator<byte[]> transformer) {
+		this.transformer = transformer;
+		transformed.clear();
+	}
+
 	public void decompile(String source, String out, String javadocs) throws IOException {
-		Map<String, Object> mapOptions = new HashMap<>();
-		mapOptions.put("rbr", "0");
-		mapOptions.put("asc", "1");
-		mapOptions.put("nco", "1");
-		mapOptions.put("ind", MCP.config.indentionString);
+		Map<String, Object> mapOptions = getOptions();
 
 		SaveType saveType = SaveType.FOLDER;
 		File destination = new File(out);
@@ -51,7 +90,12 @@ public class Decompiler implements IBytecodeProvider {
 			throw new IOException("No sources found");
 		}
 		File jdFile = new File(javadocs);
-		BaseDecompiler decompiler = new BaseDecompiler(this, saveType.getSaver().apply(destination), mapOptions, log, jdFile.exists() ? new TinyJavadocProvider(jdFile) : null);
+		TinyJavadocProvider javadocProvider = jdFile.exists() ? new TinyJavadocProvider(jdFile) : null;
+		if (saveType == SaveType.FILE && lstSources.size() == 1) {
+			decompileIncremental(lstSources.get(0), destination, mapOptions, javadocProvider);
+			return;
+		}
+		BaseDecompiler decompiler = new BaseDecompiler(this, saveType.getSaver().apply(destination), mapOptions, log, javadocProvider);
 		try {
 			for (File source2 : lstSources) {
 				decompiler.addSpace(source2, true);
@@ -61,6 +105,300 @@ public class Decompiler implements IBytecodeProvider {
 		}
 
 		decompiler.decompileContext();
+		for (File source2 : lstSources) {
+			ZipArchive.release(source2.toPath());
+		}
+	}
+
+	/**
+	 * Keeps a manifest of bytecode hashes of every class nest next to the output. Only nests which changed
+	 * since the previous run are decompiled, sources of other nests are taken from the previous output.
+	 * Changed nests are looked up in the shared {@link SourceCache} before they are decompiled.
+	 */
+	private void decompileIncremental(File source, File destination, Map<String, Object> mapOptions, TinyJavadocProvider javadocProvider) throws IOException {
+		Path manifest = Paths.get(destination.getPath() + ".manifest");
+		String header = new DigestBuilder().input(MCP.VERSION).input(new TreeMap<>(mapOptions).toString()).input(javadocProvider != null).getDigest();
+		Map<String, List<String>> nests = getNests(source);
+		Map<String, String> nestHashes = getNestHashes(source, nests, javadocProvider);
+		Map<String, String> previous = destination.exists() ? readManifest(manifest, header) : null;
+		Files.deleteIfExists(manifest);
+		if (previous == null) {
+			Files.deleteIfExists(destination.toPath());
+		}
+		List<String> outdated = new ArrayList<>();
+		for (Map.Entry<String, String> entry : nestHashes.entrySet()) {
+			if (previous == null || !entry.getValue().equals(previous.get(entry.getKey()))) {
+				outdated.add(entry.getKey());
+			}
+		}
+		if (previous == null || !outdated.isEmpty() || !previous.keySet().equals(nestHashes.keySet())) {
+			SourceCache cache = MCP.config.sourceCache ? new SourceCache(SourceCache.getDefaultDirectory(), header, getClassNames(nests)) : null;
+			Map<String, String> keys = new HashMap<>();
+			Map<String, byte[]> cached = new TreeMap<>();
+			List<String> classes = new ArrayList<>();
+			for (String outerClass : outdated) {
+				if (cache != null) {
+					SourceCache.Key key = cache.newKey(outerClass);
+					for (String name : nests.get(outerClass)) {
+						key.addClass(name, getBytecode(source.getPath(), name));
+						if (javadocProvider != null) {
+							key.addJavadoc(javadocProvider.getFingerprint(name.substring(0, name.length() - 6)));
+						}
+					}
+					String digest = key.getDigest();
+					byte[] sourceCode = cache.get(digest);
+					if (sourceCode != null) {
+						cached.put(outerClass + ".java", sourceCode);
+						continue;
+					}
+					keys.put(outerClass, digest);
+				}
+				classes.addAll(nests.get(outerClass));
+			}
+			File changedOut = new File(destination.getPath() + ".changed.zip");
+			File cachedOut = new File(destination.getPath() + ".cached.zip");
+			File mergedOut = new File(destination.getPath() + ".merged.zip");
+			List<File> outputs = new ArrayList<>();
+			if (!classes.isEmpty()) {
+				if (previous == null && cached.isEmpty() && MCP.config.decompileShards <= 1) {
+					BaseDecompiler decompiler = new BaseDecompiler(this, new SingleFileSaver(changedOut), mapOptions, log, javadocProvider);
+					decompiler.addSpace(source, true);
+					decompiler.decompileContext();
+				}
+				else {
+					decompileShards(source, classes, changedOut, mapOptions, javadocProvider, Math.max(1, MCP.config.decompileShards));
+				}
+				outputs.add(changedOut);
+				if (cache != null) {
+					ZipArchive archive = ZipArchive.get(changedOut.toPath());
+					try {
+						for (Map.Entry<String, String> entry : keys.entrySet()) {
+							String name = entry.getKey() + ".java";
+							if (archive.hasEntry(name)) {
+								cache.put(entry.getValue(), archive.read(name));
+							}
+						}
+					} finally {
+						ZipArchive.release(changedOut.toPath());
+					}
+				}
+			}
+			if (!cached.isEmpty()) {
+				FileUtil.writeZip(cachedOut.toPath(), cached, false);
+				outputs.add(cachedOut);
+			}
+			if (previous != null) {
+				outputs.add(destination);
+			}
+			// Nothing may keep the outputs or the previous sources open while they are merged and replaced
+			for (File output : outputs) {
+				ZipArchive.release(output.toPath());
+			}
+			ZipArchive.release(destination.toPath());
+			if (outputs.size() == 1 && previous == null) {
+				Files.move(outputs.get(0).toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			else {
+				// Sources of removed classes are dropped
+				mergeArchives(outputs, mergedOut, name -> !name.endsWith(".java") || nestHashes.containsKey(name.substring(0, name.length() - 5)));
+				Files.move(mergedOut.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			Files.deleteIfExists(changedOut.toPath());
+			Files.deleteIfExists(cachedOut.toPath());
+		}
+		writeManifest(manifest, header, nestHashes);
+		ZipArchive.release(source.toPath());
+	}
+
+	private static Set<String> getClassNames(Map<String, List<String>> nests) {
+		Set<String> classNames = new HashSet<>();
+		for (List<String> nest : nests.values()) {
+			for (String name : nest) {
+				classNames.add(name.substring(0, name.length() - 6));
+			}
+		}
+		return classNames;
+	}
+
+	private Map<String, String> getNestHashes(File source, Map<String, List<String>> nests, TinyJavadocProvider javadocProvider) throws IOException {
+		Map<String, String> hashes = new TreeMap<>();
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		for (Map.Entry<String, List<String>> nest : nests.entrySet()) {
+			for (String name : nest.getValue()) {
+				md.update(name.getBytes(StandardCharsets.UTF_8));
+				md.update(getBytecode(source.getPath(), name));
+				if (javadocProvider != null) {
+					md.update(javadocProvider.getFingerprint(name.substring(0, name.length() - 6)).getBytes(StandardCharsets.UTF_8));
+				}
+			}
+			hashes.put(nest.getKey(), Util.toHex(md.digest()));
+		}
+		return hashes;
+	}
+
+	private static Map<String, String> readManifest(Path manifest, String header) throws IOException {
+		if (!Files.exists(manifest)) {
+			return null;
+		}
+		List<String> lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+		if (lines.isEmpty() || !lines.get(0).equals(header)) {
+			return null;
+		}
+		Map<String, String> hashes = new HashMap<>();
+		for (String line : lines.subList(1, lines.size())) {
+			int split = line.lastIndexOf(' ');
+			if (split > 0) {
+				hashes.put(line.substring(0, split), line.substring(split + 1));
+			}
+		}
+		return hashes;
+	}
+
+	private static void writeManifest(Path manifest, String header, Map<String, String> hashes) throws IOException {
+		List<String> lines = new ArrayList<>();
+		lines.add(header);
+		for (Map.Entry<String, String> entry : hashes.entrySet()) {
+			lines.add(entry.getKey() + " " + entry.getValue());
+		}
+		Files.write(manifest, lines, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Splits the given classes of a jar into shards which are decompiled in separate contexts in parallel.
+	 * Inner classes are always placed in the same shard as their outer class and the whole jar is
+	 * available to each context as a library. Resources of the jar are added to the output.
+	 */
+	private void decompileShards(File source, List<String> classes, File destination, Map<String, Object> mapOptions, IJavadocProvider javadocProvider, int shardCount) throws IOException {
+		Path shardDir = Paths.get(destination.getPath() + ".shards");
+		FileUtil.deleteDirectoryIfExists(shardDir);
+		Files.createDirectories(shardDir);
+		List<List<String>> shards = getShards(source, classes, shardCount);
+		log.clearShards();
+		try {
+			List<Callable<File>> jobs = new ArrayList<>();
+			for (int i = 0; i < shards.size(); i++) {
+				List<String> shard = shards.get(i);
+				File shardJar = shardDir.resolve("shard" + i + ".jar").toFile();
+				File shardOut = shardDir.resolve("shard" + i + "_src.zip").toFile();
+				DecompileLogger shardLog = log.newShard(shard.size());
+				jobs.add(() -> {
+					packEntries(source, shard, shardJar);
+					BaseDecompiler decompiler = new BaseDecompiler(this, new SingleFileSaver(shardOut), mapOptions, shardLog, javadocProvider);
+					// The library has to be added first so that classes of the shard replace their library copies
+					decompiler.addSpace(source, false);
+					decompiler.addSpace(shardJar, true);
+					decompiler.decompileContext();
+					ZipArchive.release(shardJar.toPath());
+					return shardOut;
+				});
+			}
+			List<File> outputs = new ArrayList<>(WorkPool.invokeAll(jobs));
+			// Shards only have classes, resources are copied from the source the same way a single context does
+			outputs.add(source);
+			mergeArchives(outputs, destination, name -> !name.endsWith(".class"));
+		} catch (InterruptedException | ExecutionException ex) {
+			throw new IOException("Decompilation failed", ex.getCause() != null ? ex.getCause() : ex);
+		} finally {
+			ZipArchive.release(source.toPath());
+			FileUtil.deleteDirectoryIfExists(shardDir);
+		}
+	}
+
+	private static Map<String, List<String>> getNests(File source) throws IOException {
+		Map<String, List<String>> nests = new TreeMap<>();
+		for (String name : ZipArchive.get(source.toPath()).getEntryNames()) {
+			if (name.endsWith(".class")) {
+				nests.computeIfAbsent(getOuterClass(name.substring(0, name.length() - 6)), k -> new ArrayList<>()).add(name);
+			}
+		}
+		for (List<String> nest : nests.values()) {
+			Collections.sort(nest);
+		}
+		return nests;
+	}
+
+	private static List<List<String>> getShards(File source, List<String> classes, int shardCount) throws IOException {
+		Map<String, List<String>> nests = new TreeMap<>();
+		Map<String, Long> nestSizes = new HashMap<>();
+		ZipArchive archive = ZipArchive.get(source.toPath());
+		for (String name : classes) {
+			String outerClass = getOuterClass(name.substring(0, name.length() - 6));
+			nests.computeIfAbsent(outerClass, k -> new ArrayList<>()).add(name);
+			nestSizes.merge(outerClass, Math.max(archive.getSize(name), 1L), Long::sum);
+		}
+		int count = Math.max(1, Math.min(shardCount, nests.size()));
+		List<List<String>> shards = new ArrayList<>();
+		long[] shardSizes = new long[count];
+		for (int i = 0; i < count; i++) {
+			shards.add(new ArrayList<>());
+		}
+		// Largest nests first, each one into the currently smallest shard
+		List<String> outerClasses = new ArrayList<>(nests.keySet());
+		outerClasses.sort((a, b) -> Long.compare(nestSizes.get(b), nestSizes.get(a)));
+		for (String outerClass : outerClasses) {
+			int smallest = 0;
+			for (int i = 1; i < count; i++) {
+				if (shardSizes[i] < shardSizes[smallest]) {
+					smallest = i;
+				}
+			}
+			shards.get(smallest).addAll(nests.get(outerClass));
+			shardSizes[smallest] += nestSizes.get(outerClass);
+		}
+		return shards;
+	}
+
+	public static String getOuterClass(String className) {
+		int nestIndex = className.indexOf('$', className.lastIndexOf('/') + 1);
+		return nestIndex > 0 ? className.substring(0, nestIndex) : className;
+	}
+
+	private void packEntries(File source, List<String> entryNames, File out) throws IOException {
+		Map<String, byte[]> entries = new LinkedHashMap<>();
+		for (String name : entryNames) {
+			entries.put(name, getBytecode(source.getPath(), name));
+		}
+		FileUtil.writeZip(out.toPath(), entries, false);
+	}
+
+	/**
+	 * Merges entries of the given archives. If an entry exists in multiple archives, the first one is used.
+	 */
+	private static void mergeArchives(List<File> archives, File out, Predicate<String> filter) throws IOException {
+		Map<String, ZipArchive> entries = new TreeMap<>();
+		for (File file : archives) {
+			ZipArchive archive = ZipArchive.get(file.toPath());
+			for (String name : archive.getEntryNames()) {
+				if (filter.test(name)) {
+					entries.putIfAbsent(name, archive);
+				}
+			}
+		}
+		try (ZipOutputStream zipOut = new ZipOutputStream(Files.newOutputStream(out.toPath()))) {
+			for (Map.Entry<String, ZipArchive> entry : entries.entrySet()) {
+				zipOut.putNextEntry(new ZipEntry(entry.getKey()));
+				zipOut.write(entry.getValue().read(entry.getKey()));
+				zipOut.closeEntry();
+			}
+		} finally {
+			for (File file : archives) {
+				ZipArchive.release(file.toPath());
+			}
+		}
+	}
+
+	private static Map<String, Object> getOptions() {
+		Map<String, Object> mapOptions = new HashMap<>();
+		mapOptions.put("rbr", "0");
+		mapOptions.put("asc", "1");
+		mapOptions.put("nco", "1");
+		mapOptions.put("ind", MCP.config.indentionString);
+		return mapOptions;
 	}
 
 	private static void addPath(List<File> list, String path) {
@@ -75,15 +413,22 @@ public class Decompiler implements IBytecodeProvider {
 		File file = new File(externalPath);
 		if (internalPath == null) {
 			return InterpreterUtil.getBytes(file);
+		}
+		byte[] bytes = transformer == null ? null : transformed.get(internalPath);
+		if (bytes != null) {
+			return bytes;
+		}
+		if (memoryClasses != null && file.getAbsoluteFile().equals(memorySource) && memoryClasses.containsKey(internalPath)) {
+			bytes = memoryClasses.get(internalPath);
 		} else {
-			try (ZipFile archive = new ZipFile(file)) {
-				ZipEntry entry = archive.getEntry(internalPath);
-				if (entry == null) {
-					throw new IOException("Entry not found: " + internalPath);
-				}
-				return InterpreterUtil.getBytes(archive, entry);
-			}
+			bytes = ZipArchive.get(file.toPath()).read(internalPath);
+		}
+		if (transformer != null) {
+			// Transforming is repeatable, so classes of shards and libraries can share results with the source jar
+			bytes = transformer.apply(bytes);
+			transformed.put(internalPath, bytes);
 		}
+		return bytes;
 	}
 
 	public enum SaveType {
@@ -101,4 +446,4 @@ public class Decompiler implements IBytecodeProvider {
 		return saver;
 	  }
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,130 @@
+package org.mcphackers.mcp.tools.fernflower;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.mcphackers.mcp.tools.Util;
+import org.mcphackers.mcp.tools.compiler.ClassScanner;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * Decompiled sources of class nests shared between workspaces.
+ * Sources are keyed by normalized bytecode of the nest, decompiler options and documentation of the nest.
+ */
+public class SourceCache {
+
+	private final Path dir;
+	private final String header;
+	private final Set<String> classNames;
+
+	/**
+	 * @param header digest of decompiler options
+	 * @param classNames all classes of the decompiled jar
+	 */
+	public SourceCache(Path dir, String header, Set<String> classNames) {
+		this.dir = dir;
+		this.header = header;
+		this.classNames = classNames;
+	}
+
+	public static Path getDefaultDirectory() {
+		return Paths.get(System.getProperty("user.home"), ".retromcp", "cache");
+	}
+
+	public Key newKey(String outerClass) throws IOException {
+		return new Key(outerClass);
+	}
+
+	public byte[] get(String key) throws IOException {
+		Path file = getFile(key);
+		return Files.exists(file) ? Files.readAllBytes(file) : null;
+	}
+
+	public void put(String key, byte[] source) throws IOException {
+		Path file = getFile(key);
+		if (Files.exists(file)) {
+			return;
+		}
+		Files.createDirectories(file.getParent());
+		// Other workspaces may write the same entry at the same time
+		Path tmp = Files.createTempFile(file.getParent(), key, ".tmp");
+		try {
+			Files.write(tmp, source);
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private Path getFile(String key) {
+		return dir.resolve(key.substring(0, 2)).resolve(key + ".java");
+	}
+
+	public class Key {
+		private final String pkg;
+		private final MessageDigest md;
+		private final Set<String> references = new TreeSet<>();
+
+		private Key(String outerClass) throws IOException {
+			try {
+				md = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e);
+			}
+			int index = outerClass.lastIndexOf('/');
+			pkg = index < 0 ? "" : outerClass.substring(0, index + 1);
+			update(header);
+			update(outerClass);
+		}
+
+		public Key addClass(String name, byte[] bytecode) {
+			ClassReader reader = new ClassReader(bytecode);
+			// Writing the class again orders its constant pool by use
+			ClassWriter writer = new ClassWriter(0);
+			reader.accept(writer, 0);
+			update(name);
+			md.update(writer.toByteArray());
+			ClassScanner.getReferences(reader, this::addReference);
+			return this;
+		}
+
+		public Key addJavadoc(String javadoc) {
+			update(javadoc);
+			return this;
+		}
+
+		public String getDigest() {
+			// Classes of other packages are only imported if no class of the same simple name exists in this package
+			for (String reference : references) {
+				String simpleName = reference.substring(reference.lastIndexOf('/') + 1);
+				if (!reference.startsWith(pkg) && classNames.contains(pkg + simpleName)) {
+					update(reference);
+				}
+			}
+			return Util.toHex(md.digest());
+		}
+
+		private void update(String value) {
+			byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+			md.update((byte)(bytes.length >>> 24));
+			md.update((byte)(bytes.length >>> 16));
+			md.update((byte)(bytes.length >>> 8));
+			md.update((byte)bytes.length);
+			md.update(bytes);
+		}
+
+		private void addReference(String name) {
+			int nestIndex = name.indexOf('$', name.lastIndexOf('/') + 1);
+			references.add(nestIndex > 0 ? name.substring(0, nestIndex) : name);
+		}
+	}
+}
@@ -4,16 +4,12 @@ import de.fernflower.main.providers.IJavadocProvider;
 import de.fernflower.struct.StructClass;
 import de.fernflower.struct.StructField;
 import de.fernflower.struct.StructMethod;
-import net.fabricmc.mappingio.MappingReader;
-import net.fabricmc.mappingio.adapter.MappingSourceNsSwitch;
 import net.fabricmc.mappingio.tree.MappingTree;
-import net.fabricmc.mappingio.tree.MemoryMappingTree;
+import org.mcphackers.mcp.tools.mappings.MappingRepository;
 import org.objectweb.asm.Opcodes;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -101,13 +97,39 @@ public class TinyJavadocProvider implements IJavadocProvider {
 		return null;
 	}
 
-	private static MappingTree readMappings(File input) throws RuntimeException {
-		try (BufferedReader reader = Files.newBufferedReader(input.toPath())) {
-			MemoryMappingTree mappingTree = new MemoryMappingTree();
-			MappingSourceNsSwitch nsSwitch = new MappingSourceNsSwitch(mappingTree, "named");
-			MappingReader.read(reader, nsSwitch);
+	/**
+	 * @return all documentation of a class and its members as a single string
+	 */
+	public String getFingerprint(String className) {
+		MappingTree.ClassMapping classMapping = mappingTree.getClass(className);
+
+		if (classMapping == null) {
+			return "";
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(classMapping.getComment()).append('\n');
+
+		for (MappingTree.FieldMapping fieldMapping : classMapping.getFields()) {
+			sb.append(fieldMapping.getSrcName()).append(fieldMapping.getSrcDesc()).append(' ').append(fieldMapping.getComment()).append('\n');
+		}
+
+		for (MappingTree.MethodMapping methodMapping : classMapping.getMethods()) {
+			sb.append(methodMapping.getSrcName()).append(methodMapping.getSrcDesc()).append(' ').append(methodMapping.getComment()).append('\n');
 
-			return mappingTree;
+			for (MappingTree.MethodArgMapping argMapping : methodMapping.getArgs()) {
+				if (argMapping.getComment() != null) {
+					sb.append(argMapping.getName("named")).append(' ').append(argMapping.getComment()).append('\n');
+				}
+			}
+		}
+
+		return sb.toString();
+	}
+
+	private static MappingTree readMappings(File input) throws RuntimeException {
+		try {
+			return MappingRepository.get(input.toPath(), "named");
 		} catch (IOException e) {
 			throw new RuntimeException("Failed to read mappings", e);
 		}
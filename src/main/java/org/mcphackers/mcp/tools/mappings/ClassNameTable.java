@@ -0,0 +1,70 @@
+package org.mcphackers.mcp.tools.mappings;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.fabricmc.mappingio.tree.MappingTree;
+
+/**
+ * Class names of a mapping tree in both directions. Every class gets an index, so lookups either way
+ * are a single hash lookup and callers can keep per-class data in plain arrays.
+ */
+public class ClassNameTable {
+
+	private final String[] srcNames;
+	private final String[] dstNames;
+	private final Map<String, Integer> srcIndex;
+	private final Map<String, Integer> dstIndex;
+
+	private ClassNameTable(int size) {
+		srcNames = new String[size];
+		dstNames = new String[size];
+		srcIndex = new HashMap<>(size * 2);
+		dstIndex = new HashMap<>(size * 2);
+	}
+
+	public static ClassNameTable of(MappingTree mappingTree, int dstNamespace) {
+		ClassNameTable table = new ClassNameTable(mappingTree.getClasses().size());
+		int i = 0;
+		for (MappingTree.ClassMapping classEntry : mappingTree.getClasses()) {
+			String srcName = classEntry.getSrcName();
+			String dstName = classEntry.getDstName(dstNamespace);
+			table.srcNames[i] = srcName;
+			table.dstNames[i] = dstName;
+			table.srcIndex.putIfAbsent(srcName, i);
+			if (dstName != null) {
+				table.dstIndex.putIfAbsent(dstName, i);
+			}
+			i++;
+		}
+		return table;
+	}
+
+	public int size() {
+		return srcNames.length;
+	}
+
+	/**
+	 * @return index of the class with the source name or -1
+	 */
+	public int indexOf(String srcName) {
+		Integer index = srcIndex.get(srcName);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * @return index of the class with the destination name or -1
+	 */
+	public int indexOfDst(String dstName) {
+		Integer index = dstIndex.get(dstName);
+		return index == null ? -1 : index;
+	}
+
+	public String getSrcName(int index) {
+		return srcNames[index];
+	}
+
+	public String getDstName(int index) {
+		return dstNames[index];
+	}
+}
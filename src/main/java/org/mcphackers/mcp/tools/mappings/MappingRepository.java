@@ -0,0 +1,117 @@
+package org.mcphackers.mcp.tools.mappings;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.fabricmc.mappingio.adapter.MappingSourceNsSwitch;
+import net.fabricmc.mappingio.tree.MemoryMappingTree;
+
+/**
+ * Mapping trees of the running task, so that the remapper, the javadoc provider and reobfuscation share one parsed tree
+ * of a mappings file instead of reading it again. Trees are read on the first {@link #get(Path)} and stay
+ * until they are released, the file on disk changes or the task ends. Different files are read at the same time.
+ * <p>
+ * Views with another source namespace are made from the shared tree once and kept with it.
+ * Shared trees and views must not be modified, users which add mappings work on a copy.
+ */
+public final class MappingRepository {
+
+	private static final Map<Path, Entry> TREES = new HashMap<>();
+
+	private MappingRepository() {
+	}
+
+	public static MemoryMappingTree get(Path path) throws IOException {
+		Entry entry = getEntry(path);
+		synchronized (entry) {
+			return entry.load();
+		}
+	}
+
+	/**
+	 * @return shared view of the tree with the given source namespace
+	 */
+	public static MemoryMappingTree get(Path path, String srcNamespace) throws IOException {
+		Entry entry = getEntry(path);
+		synchronized (entry) {
+			MemoryMappingTree mappingTree = entry.load();
+			MemoryMappingTree view = entry.views.get(srcNamespace);
+			if (view == null) {
+				view = new MemoryMappingTree();
+				mappingTree.accept(new MappingSourceNsSwitch(view, srcNamespace));
+				entry.views.put(srcNamespace, view);
+			}
+			return view;
+		}
+	}
+
+	/**
+	 * Shares a tree which was just written to the file, so later users in this task don't read it back
+	 */
+	public static void put(Path path, MemoryMappingTree mappingTree) throws IOException {
+		Entry entry = getEntry(path);
+		synchronized (entry) {
+			entry.set(mappingTree);
+		}
+	}
+
+	/**
+	 * Drops the shared tree of a file. Trees which were handed out are unaffected
+	 */
+	public static void release(Path path) {
+		synchronized (TREES) {
+			TREES.remove(path.toAbsolutePath().normalize());
+		}
+	}
+
+	public static void releaseAll() {
+		synchronized (TREES) {
+			TREES.clear();
+		}
+	}
+
+	private static Entry getEntry(Path path) {
+		Path key = path.toAbsolutePath().normalize();
+		synchronized (TREES) {
+			return TREES.computeIfAbsent(key, Entry::new);
+		}
+	}
+
+	/**
+	 * Tree of one file, guarded by its own lock so that only users of the same file wait for it to be read
+	 */
+	private static class Entry {
+		private final Path path;
+		private final Map<String, MemoryMappingTree> views = new HashMap<>();
+		private MemoryMappingTree mappingTree;
+		private long lastModified;
+		private long size;
+
+		private Entry(Path path) {
+			this.path = path;
+		}
+
+		private MemoryMappingTree load() throws IOException {
+			if (mappingTree == null || isStale()) {
+				MemoryMappingTree readTree = new MemoryMappingTree();
+				MappingUtil.readMappings(path, readTree);
+				set(readTree);
+			}
+			return mappingTree;
+		}
+
+		private void set(MemoryMappingTree mappingTree) throws IOException {
+			this.lastModified = Files.getLastModifiedTime(path).toMillis();
+			this.size = Files.size(path);
+			this.mappingTree = mappingTree;
+			views.clear();
+		}
+
+		private boolean isStale() throws IOException {
+			return !Files.exists(path) || Files.getLastModifiedTime(path).toMillis() != lastModified || Files.size(path) != size;
+		}
+	}
+}
@@ -0,0 +1,368 @@
+package org.mcphackers.mcp.tools.mappings;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.fabricmc.mappingio.MappedElementKind;
+import net.fabricmc.mappingio.MappingVisitor;
+import net.fabricmc.mappingio.tree.MappingTree;
+
+/**
+ * Read-only binary copy of a mapping tree, which is replayed to a mapping visitor without parsing any text.
+ * The file is read at once and closed, so it can be rewritten while the copy is in use.
+ * Every distinct string is stored once and decoded at most once per read.
+ * <p>
+ * Layout: header with the number of namespaces and of every kind of element, the string indices of the namespaces,
+ * the offsets of the strings, then fixed-width records of classes, fields, methods, arguments and variables,
+ * and the UTF-8 bytes of the strings. Every record starts with the strings of its element (source name,
+ * destination names, comment). Classes and methods refer to their members by the index of the first one and a count.
+ */
+public final class MappingStore {
+
+	private static final int MAGIC = 0x4D43504D;
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 40;
+	private static final int NULL = -1;
+
+	private final ByteBuffer buffer;
+	private final int namespaces;
+	private final int stringCount;
+	private final int classCount;
+	private final int fieldCount;
+	private final int methodCount;
+	private final int argCount;
+	private final int varCount;
+	private final int stringOffsets;
+	private final int classOffset;
+	private final int fieldOffset;
+	private final int methodOffset;
+	private final int argOffset;
+	private final int varOffset;
+	private final int stringData;
+	private final String[] strings;
+
+	private MappingStore(Path path) throws IOException {
+		buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException(path + " is not a mapping store");
+		}
+		namespaces = buffer.getInt(8);
+		stringCount = buffer.getInt(12);
+		classCount = buffer.getInt(16);
+		fieldCount = buffer.getInt(20);
+		methodCount = buffer.getInt(24);
+		argCount = buffer.getInt(28);
+		varCount = buffer.getInt(32);
+		stringData = buffer.getInt(36);
+		stringOffsets = HEADER_SIZE + 4 * (namespaces + 1);
+		classOffset = stringOffsets + 4 * (stringCount + 1);
+		fieldOffset = classOffset + 4 * getClassWidth(namespaces) * classCount;
+		methodOffset = fieldOffset + 4 * getFieldWidth(namespaces) * fieldCount;
+		argOffset = methodOffset + 4 * getMethodWidth(namespaces) * methodCount;
+		varOffset = argOffset + 4 * getArgWidth(namespaces) * argCount;
+		if (varOffset + 4 * getVarWidth(namespaces) * varCount != stringData || stringData + buffer.getInt(classOffset - 4) != buffer.limit()) {
+			throw new IOException(path + " is not a mapping store");
+		}
+		strings = new String[stringCount];
+	}
+
+	public static MappingStore read(Path path) throws IOException {
+		return new MappingStore(path);
+	}
+
+	/**
+	 * Writes the tree to a temporary file first, so an interrupted write never leaves a broken store behind
+	 */
+	public static void write(Path path, MappingTree mappingTree) throws IOException {
+		StringTable table = new StringTable();
+		int namespaces = mappingTree.getDstNamespaces().size();
+		int fields = 0;
+		int methods = 0;
+		int args = 0;
+		int vars = 0;
+		table.add(mappingTree.getSrcNamespace());
+		for (String namespace : mappingTree.getDstNamespaces()) {
+			table.add(namespace);
+		}
+		for (MappingTree.ClassMapping classEntry : mappingTree.getClasses()) {
+			table.add(classEntry, namespaces);
+			for (MappingTree.FieldMapping field : classEntry.getFields()) {
+				table.add(field, namespaces);
+				table.add(field.getSrcDesc());
+				fields++;
+			}
+			for (MappingTree.MethodMapping method : classEntry.getMethods()) {
+				table.add(method, namespaces);
+				table.add(method.getSrcDesc());
+				methods++;
+				for (MappingTree.MethodArgMapping arg : method.getArgs()) {
+					table.add(arg, namespaces);
+					args++;
+				}
+				for (MappingTree.MethodVarMapping var : method.getVars()) {
+					table.add(var, namespaces);
+					vars++;
+				}
+			}
+		}
+		int stringData = HEADER_SIZE + 4 * (namespaces + 1) + 4 * (table.size() + 1)
+				+ 4 * (getClassWidth(namespaces) * mappingTree.getClasses().size() + getFieldWidth(namespaces) * fields
+				+ getMethodWidth(namespaces) * methods + getArgWidth(namespaces) * args + getVarWidth(namespaces) * vars);
+
+		Path temp = Paths.get(path + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(namespaces);
+			out.writeInt(table.size());
+			out.writeInt(mappingTree.getClasses().size());
+			out.writeInt(fields);
+			out.writeInt(methods);
+			out.writeInt(args);
+			out.writeInt(vars);
+			out.writeInt(stringData);
+			out.writeInt(table.get(mappingTree.getSrcNamespace()));
+			for (String namespace : mappingTree.getDstNamespaces()) {
+				out.writeInt(table.get(namespace));
+			}
+			int offset = 0;
+			for (byte[] bytes : table.bytes) {
+				out.writeInt(offset);
+				offset += bytes.length;
+			}
+			out.writeInt(offset);
+
+			// Each kind of element is written in its own pass, in the same order as the indices of the parents count them
+			fields = 0;
+			methods = 0;
+			for (MappingTree.ClassMapping classEntry : mappingTree.getClasses()) {
+				writeElement(out, table, classEntry, namespaces);
+				out.writeInt(fields);
+				out.writeInt(classEntry.getFields().size());
+				out.writeInt(methods);
+				out.writeInt(classEntry.getMethods().size());
+				fields += classEntry.getFields().size();
+				methods += classEntry.getMethods().size();
+			}
+			for (MappingTree.ClassMapping classEntry : mappingTree.getClasses()) {
+				for (MappingTree.FieldMapping field : classEntry.getFields()) {
+					writeElement(out, table, field, namespaces);
+					out.writeInt(table.get(field.getSrcDesc()));
+				}
+			}
+			args = 0;
+			vars = 0;
+			for (MappingTree.ClassMapping classEntry : mappingTree.getClasses()) {
+				for (MappingTree.MethodMapping method : classEntry.getMethods()) {
+					writeElement(out, table, method, namespaces);
+					out.writeInt(table.get(method.getSrcDesc()));
+					out.writeInt(args);
+					out.writeInt(method.getArgs().size());
+					out.writeInt(vars);
+					out.writeInt(method.getVars().size());
+					args += method.getArgs().size();
+					vars += method.getVars().size();
+				}
+			}
+			for (MappingTree.ClassMapping classEntry : mappingTree.getClasses()) {
+				for (MappingTree.MethodMapping method : classEntry.getMethods()) {
+					for (MappingTree.MethodArgMapping arg : method.getArgs()) {
+						writeElement(out, table, arg, namespaces);
+						out.writeInt(arg.getArgPosition());
+						out.writeInt(arg.getLvIndex());
+					}
+				}
+			}
+			for (MappingTree.ClassMapping classEntry : mappingTree.getClasses()) {
+				for (MappingTree.MethodMapping method : classEntry.getMethods()) {
+					for (MappingTree.MethodVarMapping var : method.getVars()) {
+						writeElement(out, table, var, namespaces);
+						out.writeInt(var.getLvtRowIndex());
+						out.writeInt(var.getLvIndex());
+						out.writeInt(var.getStartOpIdx());
+					}
+				}
+			}
+			for (byte[] bytes : table.bytes) {
+				out.write(bytes);
+			}
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	public String getSrcNamespace() {
+		return getString(buffer.getInt(HEADER_SIZE));
+	}
+
+	public List<String> getDstNamespaces() {
+		List<String> dstNamespaces = new ArrayList<>(namespaces);
+		for (int i = 0; i < namespaces; i++) {
+			dstNamespaces.add(getString(buffer.getInt(HEADER_SIZE + 4 * (i + 1))));
+		}
+		return dstNamespaces;
+	}
+
+	public int getClassCount() {
+		return classCount;
+	}
+
+	public void accept(MappingVisitor visitor) throws IOException {
+		do {
+			if (visitor.visitHeader()) {
+				visitor.visitNamespaces(getSrcNamespace(), getDstNamespaces());
+			}
+			if (visitor.visitContent()) {
+				for (int i = 0; i < classCount; i++) {
+					acceptClass(visitor, i);
+				}
+			}
+		} while (!visitor.visitEnd());
+	}
+
+	private void acceptClass(MappingVisitor visitor, int index) throws IOException {
+		int record = classOffset + 4 * getClassWidth(namespaces) * index;
+		if (!visitor.visitClass(getString(buffer.getInt(record))) || !acceptElement(visitor, MappedElementKind.CLASS, record)) {
+			return;
+		}
+		int members = record + 4 * (namespaces + 2);
+		int firstField = buffer.getInt(members);
+		int fields = buffer.getInt(members + 4);
+		for (int i = firstField; i < firstField + fields; i++) {
+			int field = fieldOffset + 4 * getFieldWidth(namespaces) * i;
+			if (visitor.visitField(getString(buffer.getInt(field)), getString(buffer.getInt(field + 4 * (namespaces + 2))))) {
+				acceptElement(visitor, MappedElementKind.FIELD, field);
+			}
+		}
+		int firstMethod = buffer.getInt(members + 8);
+		int methods = buffer.getInt(members + 12);
+		for (int i = firstMethod; i < firstMethod + methods; i++) {
+			acceptMethod(visitor, i);
+		}
+	}
+
+	private void acceptMethod(MappingVisitor visitor, int index) throws IOException {
+		int record = methodOffset + 4 * getMethodWidth(namespaces) * index;
+		int data = record + 4 * (namespaces + 2);
+		if (!visitor.visitMethod(getString(buffer.getInt(record)), getString(buffer.getInt(data))) || !acceptElement(visitor, MappedElementKind.METHOD, record)) {
+			return;
+		}
+		int firstArg = buffer.getInt(data + 4);
+		int args = buffer.getInt(data + 8);
+		for (int i = firstArg; i < firstArg + args; i++) {
+			int arg = argOffset + 4 * getArgWidth(namespaces) * i;
+			int argData = arg + 4 * (namespaces + 2);
+			if (visitor.visitMethodArg(buffer.getInt(argData), buffer.getInt(argData + 4), getString(buffer.getInt(arg)))) {
+				acceptElement(visitor, MappedElementKind.METHOD_ARG, arg);
+			}
+		}
+		int firstVar = buffer.getInt(data + 12);
+		int vars = buffer.getInt(data + 16);
+		for (int i = firstVar; i < firstVar + vars; i++) {
+			int var = varOffset + 4 * getVarWidth(namespaces) * i;
+			int varData = var + 4 * (namespaces + 2);
+			if (visitor.visitMethodVar(buffer.getInt(varData), buffer.getInt(varData + 4), buffer.getInt(varData + 8), getString(buffer.getInt(var)))) {
+				acceptElement(visitor, MappedElementKind.METHOD_VAR, var);
+			}
+		}
+	}
+
+	private boolean acceptElement(MappingVisitor visitor, MappedElementKind kind, int record) throws IOException {
+		for (int i = 0; i < namespaces; i++) {
+			String dstName = getString(buffer.getInt(record + 4 * (i + 1)));
+			if (dstName != null) {
+				visitor.visitDstName(kind, i, dstName);
+			}
+		}
+		if (!visitor.visitElementContent(kind)) {
+			return false;
+		}
+		String comment = getString(buffer.getInt(record + 4 * (namespaces + 1)));
+		if (comment != null) {
+			visitor.visitComment(kind, comment);
+		}
+		return true;
+	}
+
+	private String getString(int index) {
+		if (index == NULL) {
+			return null;
+		}
+		String value = strings[index];
+		if (value == null) {
+			int start = buffer.getInt(stringOffsets + 4 * index);
+			byte[] bytes = new byte[buffer.getInt(stringOffsets + 4 * (index + 1)) - start];
+			ByteBuffer view = buffer.duplicate();
+			view.position(stringData + start);
+			view.get(bytes);
+			value = strings[index] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return value;
+	}
+
+	private static void writeElement(DataOutputStream out, StringTable table, MappingTree.ElementMapping element, int namespaces) throws IOException {
+		out.writeInt(table.get(element.getSrcName()));
+		for (int i = 0; i < namespaces; i++) {
+			out.writeInt(table.get(element.getDstName(i)));
+		}
+		out.writeInt(table.get(element.getComment()));
+	}
+
+	private static int getClassWidth(int namespaces) {
+		return namespaces + 6;
+	}
+
+	private static int getFieldWidth(int namespaces) {
+		return namespaces + 3;
+	}
+
+	private static int getMethodWidth(int namespaces) {
+		return namespaces + 7;
+	}
+
+	private static int getArgWidth(int namespaces) {
+		return namespaces + 4;
+	}
+
+	private static int getVarWidth(int namespaces) {
+		return namespaces + 5;
+	}
+
+	private static class StringTable {
+		private final Map<String, Integer> indices = new HashMap<>();
+		private final List<byte[]> bytes = new ArrayList<>();
+
+		private void add(String value) {
+			if (value != null && !indices.containsKey(value)) {
+				indices.put(value, bytes.size());
+				bytes.add(value.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+
+		private void add(MappingTree.ElementMapping element, int namespaces) {
+			add(element.getSrcName());
+			for (int i = 0; i < namespaces; i++) {
+				add(element.getDstName(i));
+			}
+			add(element.getComment());
+		}
+
+		private int get(String value) {
+			return value == null ? NULL : indices.get(value);
+		}
+
+		private int size() {
+			return bytes.size();
+		}
+	}
+}
@@ -5,13 +5,19 @@ import java.io.IOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.regex.Pattern;
 
+import org.mcphackers.mcp.MCPConfig;
 import org.mcphackers.mcp.TriFunction;
+import org.mcphackers.mcp.tools.Util;
+import org.mcphackers.mcp.tools.WorkPool;
+import org.mcphackers.mcp.tools.ZipArchive;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.FieldVisitor;
@@ -19,8 +25,10 @@ import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
 import net.fabricmc.mappingio.MappedElementKind;
+import net.fabricmc.mappingio.MappingVisitor;
 import net.fabricmc.mappingio.format.Tiny2Reader;
 import net.fabricmc.mappingio.format.Tiny2Writer;
+import net.fabricmc.mappingio.tree.MappingTree;
 import net.fabricmc.mappingio.tree.MemoryMappingTree;
 import net.fabricmc.tinyremapper.IMappingProvider;
 import net.fabricmc.tinyremapper.NonClassCopyMode;
@@ -32,10 +40,30 @@ public class MappingUtil {
 
 	private static final Pattern MC_LV_PATTERN = Pattern.compile("\\$\\$\\d+");
 
-	public static void readMappings(Path mappings, MemoryMappingTree mappingTree) throws IOException {
-		try (BufferedReader reader = Files.newBufferedReader(mappings)) {
-			Tiny2Reader.read(reader, mappingTree);
+	/**
+	 * Reads tiny mappings through a binary store in the temp folder, which is made once for every version of the file
+	 */
+	public static void readMappings(Path mappings, MappingVisitor visitor) throws IOException {
+		Path store = Paths.get(MCPConfig.MAPPING_STORES, Util.toHex(Util.getMD5Digest(mappings.toFile())) + ".mappings");
+		MappingStore mappingStore = null;
+		if (Files.exists(store)) {
+			try {
+				mappingStore = MappingStore.read(store);
+			} catch (IOException e) {
+				// Store of an older version, made again below
+			}
+		}
+		if (mappingStore == null) {
+			MemoryMappingTree mappingTree = new MemoryMappingTree();
+			try (BufferedReader reader = Files.newBufferedReader(mappings)) {
+				Tiny2Reader.read(reader, mappingTree);
+			}
+			Files.createDirectories(store.getParent());
+			MappingStore.write(store, mappingTree);
+			mappingTree.accept(visitor);
+			return;
 		}
+		mappingStore.accept(visitor);
 	}
 
 	public static void writeMappings(Path mappings, MemoryMappingTree mappingTree) throws IOException {
@@ -46,6 +74,24 @@ public class MappingUtil {
 	public static void modifyClasses(MemoryMappingTree mappingTree, Path classPath, Function<String, String> getDstName) throws IOException {
 		modifyMappings(mappingTree, classPath, MappedElementKind.CLASS, getDstName);
 	}
+
+	public static void modifyClasses(MemoryMappingTree mappingTree, ZipArchive archive, Function<String, String> getDstName) throws IOException {
+		modifyMappings(mappingTree, visitor -> {
+			for (String name : archive.getEntryNames()) {
+				if (name.endsWith(".class")) {
+					new ClassReader(archive.read(name)).accept(visitor, 0);
+				}
+			}
+		}, MappedElementKind.CLASS, getDstName);
+	}
+	
+	public static void modifyClasses(MemoryMappingTree mappingTree, Map<String, byte[]> classes, Function<String, String> getDstName) throws IOException {
+		modifyMappings(mappingTree, visitor -> {
+			for (byte[] bytes : classes.values()) {
+				new ClassReader(bytes).accept(visitor, 0);
+			}
+		}, MappedElementKind.CLASS, getDstName);
+	}
 	
 	public static void modifyFields(MemoryMappingTree mappingTree, Path classPath, TriFunction<String, String, String, String> getDstName) throws IOException {
 		modifyMappings(mappingTree, classPath, MappedElementKind.FIELD, getDstName);
@@ -56,57 +102,63 @@ public class MappingUtil {
 	}
 	
 	private static void modifyMappings(MemoryMappingTree mappingTree, Path classPath, MappedElementKind kind, Object getDstName) throws IOException {
+		modifyMappings(mappingTree, visitor -> {
+			Files.walkFileTree(classPath, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					if (file.toString().endsWith(".class")) {
+						ClassReader reader = new ClassReader(Files.readAllBytes(file));
+						reader.accept(visitor, 0);
+					}
+					return super.visitFile(file, attrs);
+				}
+			});
+		}, kind, getDstName);
+	}
+
+	private static void modifyMappings(MemoryMappingTree mappingTree, ClassSource classes, MappedElementKind kind, Object getDstName) throws IOException {
 		do {
 			if (mappingTree.visitHeader()) mappingTree.visitNamespaces(mappingTree.getSrcNamespace(), mappingTree.getDstNamespaces());
 
 			if (mappingTree.visitContent()) {
-				Files.walkFileTree(classPath, new SimpleFileVisitor<Path>() {
+				ClassVisitor visitor = new ClassVisitor(Opcodes.ASM9) {
+					private String currentClass;
+					
+					@Override
+					public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {	
+						currentClass = name;
+						if (kind == MappedElementKind.CLASS) {
+							String dstName = ((Function<String, String>)getDstName).apply(name);
+							if(dstName != null) {
+								modifyClass(mappingTree, name, dstName);
+							}
+						}
+						super.visit(version, access, name, signature, superName, interfaces);
+					}
+
 					@Override
-					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-						if (file.toString().endsWith(".class")) {
-							ClassVisitor visitor = new ClassVisitor(Opcodes.ASM9) {
-								private String currentClass;
-								
-								@Override
-								public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {	
-									currentClass = name;
-									if (kind == MappedElementKind.CLASS) {
-										String dstName = ((Function<String, String>)getDstName).apply(name);
-										if(dstName != null) {
-											modifyClass(mappingTree, name, dstName);
-										}
-									}
-									super.visit(version, access, name, signature, superName, interfaces);
-								}
-
-								@Override
-								public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
-									if (kind == MappedElementKind.FIELD) {
-										String dstName = ((TriFunction<String, String, String, String>)getDstName).apply(currentClass, name, descriptor);
-										if(dstName != null) {
-											modifyField(mappingTree, currentClass, name, descriptor, dstName);
-										}
-									}
-									return super.visitField(access, name, descriptor, signature, value);
-								}
-
-								@Override
-								public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
-									if (kind == MappedElementKind.METHOD) {
-										String dstName = ((TriFunction<String, String, String, String>)getDstName).apply(currentClass, name, descriptor);
-										if(dstName != null) {
-											modifyMethod(mappingTree, currentClass, name, descriptor, dstName);
-										}
-									}
-									return super.visitMethod(access, name, descriptor, signature, exceptions);
-								}
-							};
-							ClassReader reader = new ClassReader(Files.readAllBytes(file));
-							reader.accept(visitor, 0);
+					public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+						if (kind == MappedElementKind.FIELD) {
+							String dstName = ((TriFunction<String, String, String, String>)getDstName).apply(currentClass, name, descriptor);
+							if(dstName != null) {
+								modifyField(mappingTree, currentClass, name, descriptor, dstName);
+							}
 						}
-						return super.visitFile(file, attrs);
+						return super.visitField(access, name, descriptor, signature, value);
 					}
-				});
+
+					@Override
+					public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+						if (kind == MappedElementKind.METHOD) {
+							String dstName = ((TriFunction<String, String, String, String>)getDstName).apply(currentClass, name, descriptor);
+							if(dstName != null) {
+								modifyMethod(mappingTree, currentClass, name, descriptor, dstName);
+							}
+						}
+						return super.visitMethod(access, name, descriptor, signature, exceptions);
+					}
+				};
+				classes.accept(visitor);
 			}
 		} while (!mappingTree.visitEnd());
 	}
@@ -132,10 +184,14 @@ public class MappingUtil {
 	}
 	
 	public static void remap(Path mappings, Path input, Path output, Path[] cp, String srcNamespace, String dstNamespace) throws IOException {
+		remap(TinyUtils.createTinyMappingProvider(mappings, srcNamespace, dstNamespace), input, output, cp);
+	}
+
+	public static void remap(IMappingProvider mappings, Path input, Path output, Path[] cp) throws IOException {
 		TinyRemapper remapper = null;
 
 		try (OutputConsumerPath outputConsumer = new OutputConsumerPath.Builder(output).build()) {
-			remapper = applyMappings(TinyUtils.createTinyMappingProvider(mappings, srcNamespace, dstNamespace), input, outputConsumer, cp);
+			remapper = applyMappings(mappings, input, outputConsumer, cp);
 			outputConsumer.addNonClassFiles(input, NonClassCopyMode.FIX_META_INF, remapper);
 		} finally {
 			if (remapper != null) {
@@ -144,6 +200,68 @@ public class MappingUtil {
 		}
 	}
 
+	public static void remap(Path mappings, Path input, BiConsumer<String, byte[]> output, Path[] cp, String srcNamespace, String dstNamespace) {
+		remap(TinyUtils.createTinyMappingProvider(mappings, srcNamespace, dstNamespace), input, output, cp);
+	}
+
+	public static void remap(IMappingProvider mappings, Path input, BiConsumer<String, byte[]> output, Path[] cp) {
+		TinyRemapper remapper = null;
+
+		try {
+			remapper = applyMappings(mappings, input, output, cp);
+		} finally {
+			if (remapper != null) {
+				remapper.finish();
+			}
+		}
+	}
+
+	/**
+	 * @return mappings from the source namespace of the tree to the given namespace, without writing them to a file
+	 */
+	public static IMappingProvider createMappingProvider(MappingTree mappingTree, String dstNamespace) {
+		int namespace = mappingTree.getNamespaceId(dstNamespace);
+		return acceptor -> {
+			for (MappingTree.ClassMapping classEntry : mappingTree.getClasses()) {
+				String owner = classEntry.getSrcName();
+				String className = classEntry.getDstName(namespace);
+				if (className != null) {
+					acceptor.acceptClass(owner, className);
+				}
+				for (MappingTree.FieldMapping field : classEntry.getFields()) {
+					String fieldName = field.getDstName(namespace);
+					if (fieldName != null) {
+						acceptor.acceptField(new IMappingProvider.Member(owner, field.getSrcName(), field.getSrcDesc()), fieldName);
+					}
+				}
+				for (MappingTree.MethodMapping method : classEntry.getMethods()) {
+					IMappingProvider.Member member = new IMappingProvider.Member(owner, method.getSrcName(), method.getSrcDesc());
+					String methodName = method.getDstName(namespace);
+					if (methodName != null) {
+						acceptor.acceptMethod(member, methodName);
+					}
+					for (MappingTree.MethodArgMapping arg : method.getArgs()) {
+						String argName = arg.getDstName(namespace);
+						if (argName != null) {
+							acceptor.acceptMethodArg(member, arg.getLvIndex(), argName);
+						}
+					}
+					for (MappingTree.MethodVarMapping var : method.getVars()) {
+						String varName = var.getDstName(namespace);
+						if (varName != null) {
+							acceptor.acceptMethodVar(member, var.getLvIndex(), var.getStartOpIdx(), var.getLvtRowIndex(), varName);
+						}
+					}
+				}
+			}
+		};
+	}
+
+	@FunctionalInterface
+	private interface ClassSource {
+		void accept(ClassVisitor visitor) throws IOException;
+	}
+
 	private static TinyRemapper applyMappings(IMappingProvider mappings, Path input, BiConsumer<String, byte[]> consumer, Path... classpath) {
 		TinyRemapper remapper = TinyRemapper.newRemapper()
 				.renameInvalidLocals(false)
@@ -151,7 +269,7 @@ public class MappingUtil {
 				.invalidLvNamePattern(MC_LV_PATTERN)
 				.withMappings(mappings)
 				.fixPackageAccess(false)
-				.threads(Runtime.getRuntime().availableProcessors() - 3)
+				.threads(WorkPool.getShare())
 				.rebuildSourceFilenames(true)
 				.build();
 
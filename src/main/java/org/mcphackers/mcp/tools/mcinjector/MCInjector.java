@@ -1,6 +1,8 @@
 package org.mcphackers.mcp.tools.mcinjector;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.logging.Level;
 
 import mcp.mcinjector.MCInjectorImpl;
@@ -21,4 +23,18 @@ public class MCInjector extends MCInjectorImpl {
 		mci.processJar(inFile, outFile);
 	}
 
+	public static Map<String, byte[]> process(Map<String, byte[]> classes, String mapFile, int index)
+		throws IOException
+	{
+		MCInjectorImpl.log.setUseParentHandlers(false);
+		MCInjectorImpl.log.setLevel(Level.ALL);
+		MCInjectorImpl mci = new MCInjector(index);
+		mci.loadMap(mapFile);
+		Map<String, byte[]> processed = new TreeMap<>();
+		for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+			processed.put(entry.getKey(), entry.getKey().endsWith(".class") ? mci.processClass(entry.getValue()) : entry.getValue());
+		}
+		return processed;
+	}
+
 }
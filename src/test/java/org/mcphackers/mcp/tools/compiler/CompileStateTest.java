@@ -0,0 +1,71 @@
+package org.mcphackers.mcp.tools.compiler;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+public class CompileStateTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	/**
+	 * C calls foo on B, which B inherits from A. The call refers to B.foo, so C has to be recompiled
+	 * when the API of A changes, even though B itself didn't change.
+	 */
+	@Test
+	public void inheritedMemberChange() throws Exception {
+		Map<String, byte[]> classes = new HashMap<>();
+		classes.put("A", createClass("A", "java/lang/Object", null));
+		classes.put("B", createClass("B", "A", null));
+		classes.put("C", createClass("C", "java/lang/Object", "B"));
+		CompileState state = new CompileState();
+		for (String name : classes.keySet()) {
+			state.put(name + ".java", CompileState.Entry.read(name, Collections.singleton(name), classes));
+		}
+		assertFalse(state.getDependents(Collections.singleton("A")).contains("C.java"));
+		assertInheritedDependents(state);
+
+		Path file = temp.getRoot().toPath().resolve("compile.state");
+		state.write(file, "header");
+		assertInheritedDependents(CompileState.read(file, "header"));
+	}
+
+	private static void assertInheritedDependents(CompileState state) {
+		Set<String> dependents = state.getDependents(state.getSubtypes(Collections.singleton("A")));
+		assertTrue(dependents.contains("B.java"));
+		assertTrue(dependents.contains("C.java"));
+		assertFalse(dependents.contains("A.java"));
+	}
+
+	/**
+	 * @param caller class on which foo is called or null for a class which declares foo
+	 */
+	private static byte[] createClass(String name, String superName, String caller) {
+		ClassWriter writer = new ClassWriter(0);
+		writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, name, null, superName, null);
+		MethodVisitor method = writer.visitMethod(Opcodes.ACC_PUBLIC, caller == null ? "foo" : "bar", caller == null ? "()V" : "(L" + caller + ";)V", null, null);
+		method.visitCode();
+		if (caller != null) {
+			method.visitVarInsn(Opcodes.ALOAD, 1);
+			method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, caller, "foo", "()V", false);
+		}
+		method.visitInsn(Opcodes.RETURN);
+		method.visitMaxs(1, 2);
+		method.visitEnd();
+		writer.visitEnd();
+		return writer.toByteArray();
+	}
+}
@@ -0,0 +1,297 @@
+package org.mcphackers.mcp.tools.constants;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.Stack;
+import java.util.function.Function;
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.mcphackers.mcp.tools.Util;
+
+/**
+ * Compares the lexer based replacement with the regular expressions it replaced, so that patches made
+ * against sources of previous versions keep applying. Cases where the results differ on purpose are listed separately.
+ */
+public class ConstantsTest {
+
+	/**
+	 * Sources as they come out of the decompiler, for which both implementations have to give the same result
+	 */
+	private static final String[] SAME = {
+			"package net.minecraft.src;\n\nimport org.lwjgl.opengl.GL11;\n\npublic class A {\n"
+					+ "\tvoid render() {\n"
+					+ "\t\tGL11.glEnable(3042);\n"
+					+ "\t\tGL11.glBlendFunc(770, 771);\n"
+					+ "\t\tGL11.glBindTexture(3553, this.texture);\n"
+					+ "\t\tGL11.glMatrixMode(5889);\n"
+					+ "\t\tGL11.glTexParameteri(3553, 10241, 9728);\n"
+					+ "\t}\n}\n",
+			"package net.minecraft.src;\n\nimport org.lwjgl.input.Keyboard;\n\npublic class B {\n"
+					+ "\tvoid keys() {\n"
+					+ "\t\tif(Keyboard.isKeyDown(42)) {\n"
+					+ "\t\t\tString name = Keyboard.getKeyName(17);\n"
+					+ "\t\t}\n"
+					+ "\t\tif(Keyboard.getEventKey() == 28) {\n"
+					+ "\t\t\tthis.keyBindForward = new KeyBinding(\"Forward\", 17);\n"
+					+ "\t\t}\n"
+					+ "\t\tthis.keyBindJump = new KeyBinding(\"key.jump\", 57);\n"
+					+ "\t}\n}\n",
+			"package net.minecraft.src;\n\npublic class C {\n"
+					+ "\tfloat a = 3.1415927F;\n"
+					+ "\tdouble b = 6.283185307179586D;\n"
+					+ "\tdouble c = (double)0.1F + 0.01D;\n"
+					+ "\tdouble d = (double)0.15F * (double)(0.997F) - 0.0075D;\n"
+					+ "\tint e = 16777215 & this.color;\n"
+					+ "\tfloat f = -3.1415927F + this.angle * 3.1415927F;\n"
+					+ "\tString g = \"3.1415927F\";\n"
+					+ "\tint field_1234 = 1234;\n"
+					+ "\tlong h = 16777215L;\n"
+					+ "}\n",
+			"package net.minecraft.src;\n\nimport java.util.List;\n\npublic class D {\n"
+					+ "\tvoid draw() {\n"
+					+ "\t\tGL11.glEnable(3553);\n"
+					+ "\t\tGL11.glDisable(2896);\n"
+					+ "\t\tfloat scale = 0.017453292F;\n"
+					+ "\t\tthis.setColor(16777215);\n"
+					+ "\t}\n}\n",
+			"package net.minecraft.src;\n\npublic class E {\n"
+					+ "\tint a = 3042;\n"
+					+ "\tvoid render() {\n"
+					+ "\t\tthis.glEnable(3042);\n"
+					+ "\t\tGL11.glEnable(this.a);\n"
+					+ "\t}\n}\n"
+	};
+
+	@Test
+	public void sameAsRegularExpressions() throws Exception {
+		GLConstants glConstants = new GLConstants();
+		MathConstants mathConstants = new MathConstants();
+		Baseline baseline = new Baseline();
+		for (String code : SAME) {
+			assertEquals(baseline.replace(code), Constants.replace(code, glConstants, mathConstants));
+		}
+	}
+
+	/**
+	 * Calls the methods of every group of gl_constants.json with the constants of the group, so that every method
+	 * and every constant is used at least once, and Keyboard with every key.
+	 * A last source calls the first method of every group, so that it needs several imports.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void everyRule() throws Exception {
+		GLConstants glConstants = new GLConstants();
+		MathConstants mathConstants = new MathConstants();
+		Baseline baseline = new Baseline();
+		JSONObject json = getJson();
+		List<String> sources = new ArrayList<>();
+		StringBuilder firstCalls = new StringBuilder();
+		for (Object groupObj : Util.jsonToList(json.getJSONArray("CONSTANTS"))) {
+			List<Object> group = (List<Object>)groupObj;
+			List<String> methods = new ArrayList<>();
+			for (Entry<String, Object> owner : ((Map<String, Object>)group.get(0)).entrySet()) {
+				for (Object method : (List<Object>)owner.getValue()) {
+					methods.add(owner.getKey() + "." + method);
+				}
+			}
+			List<String> constants = new ArrayList<>();
+			for (Object owner : ((Map<String, Object>)group.get(1)).values()) {
+				constants.addAll(((Map<String, Object>)owner).keySet());
+			}
+			StringBuilder calls = new StringBuilder();
+			for (int i = 0; i < Math.max(methods.size(), constants.size()); i++) {
+				calls.append("\t\t").append(methods.get(i % methods.size())).append('(').append(constants.get(i % constants.size())).append(");\n");
+			}
+			firstCalls.append("\t\t").append(methods.get(0)).append('(').append(constants.get(0)).append(");\n");
+			sources.add(source(calls));
+		}
+		StringBuilder keys = new StringBuilder();
+		for (String key : Util.jsonToMap(json.getJSONObject("CONSTANTS_KEYBOARD")).keySet()) {
+			keys.append("\t\tKeyboard.isKeyDown(").append(key).append(");\n");
+		}
+		firstCalls.append("\t\tKeyboard.isKeyDown(1);\n");
+		sources.add(source(keys));
+		sources.add(source(firstCalls));
+		for (String code : sources) {
+			assertEquals(baseline.replace(code), Constants.replace(code, glConstants, mathConstants));
+		}
+	}
+
+	private static String source(CharSequence calls) {
+		return "package net.minecraft.src;\n\nimport java.util.List;\n\npublic class F {\n\tvoid calls() {\n" + calls + "\t}\n}\n";
+	}
+
+	/**
+	 * The regular expressions took everything up to the first closing parenthesis as the arguments of a call
+	 */
+	@Test
+	public void nestedCalls() throws Exception {
+		// Arguments of a nested call belong to that call, not to the LWJGL method
+		assertDiffers("GL11.glBegin(this.getMode(7));",
+				"GL11.glBegin(this.getMode(GL11.GL_QUADS));",
+				"GL11.glBegin(this.getMode(7));");
+		assertDiffers("Keyboard.isKeyDown(this.keys[42]);",
+				"Keyboard.isKeyDown(this.keys[Keyboard.KEY_LSHIFT]);",
+				"Keyboard.isKeyDown(this.keys[42]);");
+		// Arguments after a nested call are replaced as well
+		assertDiffers("GL11.glTexParameteri(this.getTarget(), 10241, 9728);",
+				"GL11.glTexParameteri(this.getTarget(), 10241, 9728);",
+				"GL11.glTexParameteri(this.getTarget(), GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);");
+	}
+
+	/**
+	 * The regular expressions didn't tell literals from parts of strings and comments
+	 */
+	@Test
+	public void stringsAndComments() throws Exception {
+		assertDiffers("this.log(\"GL11.glEnable(3042)\");",
+				"this.log(\"GL11.glEnable(GL11.GL_BLEND)\");",
+				"this.log(\"GL11.glEnable(3042)\");");
+		assertDiffers("// 3.1415927F\nfloat a = 3.1415927F;",
+				"// (float)Math.PI\nfloat a = (float)Math.PI;",
+				"// 3.1415927F\nfloat a = (float)Math.PI;");
+	}
+
+	private static void assertDiffers(String code, String previous, String expected) throws Exception {
+		GLConstants glConstants = new GLConstants();
+		assertEquals(previous, new Baseline().replace(code));
+		assertEquals(expected, Constants.replace(code, glConstants, new MathConstants()));
+	}
+
+	private static JSONObject getJson() throws Exception {
+		return Util.parseJSONFile(GLConstants.class.getClassLoader().getResourceAsStream("gl_constants.json"));
+	}
+
+	/**
+	 * Replacement of previous versions: Keyboard calls, then LWJGL calls, then math constants, each with regular expressions.
+	 * Rules are looked up in the parsed JSON and the table of math constants as they were, not through the index.
+	 */
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private static class Baseline {
+		private static final Pattern CONSTANT_REGEX = Pattern.compile("(?<![-.\\w])\\d+(?![.\\w])");
+		private static final Pattern INPUT_REGEX = Pattern.compile("((Keyboard)\\.((getKeyName|isKeyDown)\\(.+?\\)|getEventKey\\(\\) == .+?(?=[\\);]))|new KeyBinding\\([ \\w\\\"]+, .+?\\))");
+		private static final Pattern MATH_REGEX = Pattern.compile("(?![\\\"\\'][.\\w\\s]*)-*\\d+\\.*\\w*(?![.\\w\\s]*[\\\"\\'])");
+		private static final Pattern IMPORT = Pattern.compile("import [.*\\w]+;");
+		private static final Map<String, String> MATH_CONSTANTS = new HashMap<>();
+
+		static {
+			for (int i = 1; i <= 100; i++) {
+				double d = i * 0.01D;
+				if (d != (double)(float)d) {
+					floatCastedToDouble((float)d);
+				}
+			}
+			floatCastedToDouble(0.0075F);
+			floatCastedToDouble(0.999F);
+			floatCastedToDouble(0.997F);
+			floatCastedToDouble(1.62F);
+			MATH_CONSTANTS.put(Math.PI + "D", "Math.PI");
+			MATH_CONSTANTS.put((float)Math.PI + "F", "(float)Math.PI");
+			MATH_CONSTANTS.put((float)Math.PI / 2F + "F", "(float)Math.PI / 2F");
+			MATH_CONSTANTS.put((float)Math.PI / 4.5F + "F", "(float)Math.PI / 4.5F");
+			MATH_CONSTANTS.put((double)(float)Math.PI + "D", "(double)(float)Math.PI");
+			MATH_CONSTANTS.put(Math.PI * 2D + "D", "Math.PI * 2D");
+			MATH_CONSTANTS.put(Math.PI / 2D + "D", "Math.PI / 2D");
+			MATH_CONSTANTS.put(String.valueOf(0xFFFFFF), "0xFFFFFF");
+			MATH_CONSTANTS.put(String.valueOf(0x20200000), "0x20200000");
+			MATH_CONSTANTS.put(String.valueOf(0x20400000), "0x20400000");
+			MATH_CONSTANTS.put(String.valueOf(0xFF000000), "0xFF000000");
+			MATH_CONSTANTS.put(2.0D / 256D + "D", "2.0D / 256D");
+			MATH_CONSTANTS.put(6.0D / 256D + "D", "6.0D / 256D");
+			MATH_CONSTANTS.put(7.0D / 256D + "D", "7.0D / 256D");
+			MATH_CONSTANTS.put(8.0D / 256D + "D", "8.0D / 256D");
+			MATH_CONSTANTS.put(9.0D / 256D + "D", "9.0D / 256D");
+		}
+
+		private final List packages;
+		private final List constants;
+		private final Map keyboard;
+		private final Pattern callRegex;
+
+		private Baseline() throws Exception {
+			JSONObject json = getJson();
+			packages = json.getJSONArray("PACKAGES").toList();
+			constants = Util.jsonToList(json.getJSONArray("CONSTANTS"));
+			keyboard = Util.jsonToMap(json.getJSONObject("CONSTANTS_KEYBOARD"));
+			callRegex = Pattern.compile("(" + String.join("|", packages) + ")\\.([\\w]+)\\(.+?\\)");
+		}
+
+		private String replace(String code) {
+			Set<String> imports = new HashSet<>();
+			code = replaceTextOfMatchGroup(code, INPUT_REGEX, match1 -> replaceTextOfMatchGroup(match1.group(0), CONSTANT_REGEX, match2 -> {
+				String replaceConst = (String)keyboard.get(match2.group(0));
+				if (replaceConst == null) {
+					return match2.group();
+				}
+				imports.add("org.lwjgl.input.Keyboard");
+				return "Keyboard." + replaceConst;
+			}));
+			code = replaceTextOfMatchGroup(code, callRegex, match1 -> {
+				String pkg = match1.group(1);
+				String method = match1.group(2);
+				return replaceTextOfMatchGroup(match1.group(0), CONSTANT_REGEX, match2 -> {
+					String fullMatch = match2.group(0);
+					for (Object groupObj : constants) {
+						List group = (List)groupObj;
+						Map<String, List> methods = (Map<String, List>)group.get(0);
+						if (methods.containsKey(pkg) && methods.get(pkg).contains(method)) {
+							for (Entry<String, Map> entry : ((Map<String, Map>)group.get(1)).entrySet()) {
+								if (entry.getValue().containsKey(fullMatch)) {
+									imports.add("org.lwjgl.opengl." + entry.getKey());
+									return entry.getKey() + "." + entry.getValue().get(fullMatch);
+								}
+							}
+						}
+					}
+					return fullMatch;
+				});
+			});
+			for (String imp : imports) {
+				code = updateImport(code, imp);
+			}
+			return replaceTextOfMatchGroup(code, MATH_REGEX, match -> MATH_CONSTANTS.getOrDefault(match.group(0), match.group(0)));
+		}
+
+		private static void floatCastedToDouble(float value) {
+			MATH_CONSTANTS.put((double)value + "D", "(double)" + value + "F");
+		}
+
+		private static String updateImport(String code, String imp) {
+			Matcher matcher = IMPORT.matcher(code);
+			int lastIndex = -1;
+			while (matcher.find()) {
+				lastIndex = matcher.end();
+			}
+			String impString = "import " + imp + ";";
+			if (lastIndex >= 0 && !code.contains(impString)) {
+				code = code.substring(0, lastIndex) + System.lineSeparator() + impString + code.substring(lastIndex);
+			}
+			return code;
+		}
+
+		private static String replaceTextOfMatchGroup(String sourceString, Pattern pattern, Function<MatchResult, String> replaceStrategy) {
+			Stack<MatchResult> startPositions = new Stack<>();
+			Matcher matcher = pattern.matcher(sourceString);
+			while (matcher.find()) {
+				startPositions.push(matcher.toMatchResult());
+			}
+			StringBuilder sb = new StringBuilder(sourceString);
+			while (!startPositions.isEmpty()) {
+				MatchResult match = startPositions.pop();
+				sb.replace(match.start(), match.end(), replaceStrategy.apply(match));
+			}
+			return sb.toString();
+		}
+	}
+}